@@ -0,0 +1,51 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Generates distinct {@link Class} instances to simulate large numbers of tracked entity types.
+ */
+public final class BenchmarkClasses {
+
+    private BenchmarkClasses() {
+    }
+
+    /**
+     * Creates the given number of proxy classes. Every class is defined by its own classloader, so all of them
+     * have a different name.
+     * @param count Number of classes
+     * @return The generated classes
+     */
+    public static Class<?>[] generate(int count) {
+        Class<?>[] classes = new Class<?>[count];
+        for (int i = 0; i < count; i++) {
+            ClassLoader classLoader = new URLClassLoader(new URL[0], BenchmarkClasses.class.getClassLoader());
+            classes[i] = Proxy.newProxyInstance(classLoader, new Class<?>[] {Runnable.class},
+                    (proxy, method, args) -> null).getClass();
+        }
+        return classes;
+    }
+}
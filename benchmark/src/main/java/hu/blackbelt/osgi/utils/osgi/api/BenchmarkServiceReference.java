@@ -0,0 +1,88 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal {@link ServiceReference} used to feed the caches without a running framework.
+ */
+public class BenchmarkServiceReference<S> implements ServiceReference<S> {
+
+    private static final AtomicLong SERVICE_ID = new AtomicLong();
+
+    private final Map<String, Object> properties;
+
+    public BenchmarkServiceReference(int rank) {
+        this(rank, ImmutableMap.of());
+    }
+
+    public BenchmarkServiceReference(int rank, Map<String, Object> properties) {
+        this.properties = ImmutableMap.<String, Object>builder()
+                .putAll(properties)
+                .put(Constants.SERVICE_ID, SERVICE_ID.incrementAndGet())
+                .put(Constants.SERVICE_RANKING, rank)
+                .build();
+    }
+
+    @Override
+    public Object getProperty(String key) {
+        return properties.get(key);
+    }
+
+    @Override
+    public String[] getPropertyKeys() {
+        return properties.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public Bundle getBundle() {
+        return null;
+    }
+
+    @Override
+    public Bundle[] getUsingBundles() {
+        return null;
+    }
+
+    @Override
+    public boolean isAssignableTo(Bundle bundle, String className) {
+        return true;
+    }
+
+    @Override
+    public int compareTo(Object reference) {
+        ServiceReference other = (ServiceReference) reference;
+        int result = Integer.compare((Integer) properties.get(Constants.SERVICE_RANKING),
+                (Integer) other.getProperty(Constants.SERVICE_RANKING));
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare((Long) other.getProperty(Constants.SERVICE_ID), (Long) properties.get(Constants.SERVICE_ID));
+    }
+}
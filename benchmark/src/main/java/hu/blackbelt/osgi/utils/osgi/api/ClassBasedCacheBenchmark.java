@@ -0,0 +1,118 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookups of {@link AbstractOsgiClassBasedCache} with the former synchronized implementation
+ * ({@link SynchronizedClassBasedCache}) and with {@link ClassValueClassBasedCache} on 1, 4, 16 and 64 threads.
+ *
+ * <pre>
+ * mvn -Pbenchmark -pl osgi-api,benchmark -am package -DskipTests
+ * java -jar benchmark/target/benchmarks.jar ClassBasedCacheBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassBasedCacheBenchmark {
+
+    @Param({"synchronized", "concurrent", "classValue"})
+    String implementation;
+
+    @Param({"100"})
+    int classCount;
+
+    ClassBasedCache<Class<?>, Object> cache;
+    Class<?>[] classes;
+
+    @Setup
+    public void setUp() {
+        classes = BenchmarkClasses.generate(classCount);
+        if ("synchronized".equals(implementation)) {
+            SynchronizedClassBasedCache<Class<?>, Object> synchronizedCache = new SynchronizedClassBasedCache<>();
+            for (Class<?> clazz : classes) {
+                synchronizedCache.addToCache(clazz, new Object());
+            }
+            cache = synchronizedCache;
+        } else if ("classValue".equals(implementation)) {
+            ClassValueClassBasedCache<Class<?>, Object> classValueCache = new ClassValueClassBasedCache<>();
+            for (Class<?> clazz : classes) {
+                classValueCache.addToCache(clazz, new Object());
+            }
+            cache = classValueCache;
+        } else {
+            AbstractOsgiClassBasedCache<Class<?>, Object> concurrentCache = new AbstractOsgiClassBasedCache<Class<?>, Object>() {
+            };
+            for (Class<?> clazz : classes) {
+                concurrentCache.addToCache(clazz, new Object());
+            }
+            cache = concurrentCache;
+        }
+    }
+
+    private Object lookup() {
+        return cache.getInstance(classes[ThreadLocalRandom.current().nextInt(classes.length)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object getInstance1() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getInstance4() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object getInstance16() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Object getInstance64() {
+        return lookup();
+    }
+}
@@ -0,0 +1,82 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ServiceCache#find(String)} against {@link ServiceCache#find(Class)} while the number of
+ * registered classes grows. Both lookups have to stay flat.
+ *
+ * <pre>
+ * mvn -Pbenchmark -pl osgi-api,benchmark -am package -DskipTests
+ * java -jar benchmark/target/benchmarks.jar ServiceCacheFindByNameBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceCacheFindByNameBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int classCount;
+
+    ServiceCache<Object> serviceCache;
+    Class<?> lookupClass;
+    String lookupName;
+
+    @Setup
+    public void setUp() {
+        // The class objects are the service instances themselves
+        serviceCache = new ServiceCache<>(instance -> (Class) instance);
+        for (Class<?> clazz : BenchmarkClasses.generate(classCount)) {
+            serviceCache.bindService(new BenchmarkServiceReference<>(0), clazz);
+            lookupClass = clazz;
+        }
+        lookupName = lookupClass.getName();
+    }
+
+    @Benchmark
+    public Object findByName() {
+        return serviceCache.find(lookupName);
+    }
+
+    @Benchmark
+    public Object findByClass() {
+        return serviceCache.find(lookupClass);
+    }
+}
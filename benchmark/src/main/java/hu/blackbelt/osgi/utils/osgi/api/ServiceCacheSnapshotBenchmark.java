@@ -0,0 +1,95 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the default {@link ServiceCache#find(Class)} path (concurrent map and skip list) with the
+ * snapshot read mode under concurrent readers.
+ *
+ * <pre>
+ * mvn -Pbenchmark -pl osgi-api,benchmark -am package -DskipTests
+ * java -jar benchmark/target/benchmarks.jar ServiceCacheSnapshotBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+@Fork(1)
+public class ServiceCacheSnapshotBenchmark {
+
+    @Param({"false", "true"})
+    boolean snapshotReads;
+
+    @Param({"100"})
+    int classCount;
+
+    @Param({"3"})
+    int servicesPerClass;
+
+    ServiceCache<Object> serviceCache;
+    Class<?>[] classes;
+
+    @Setup
+    public void setUp() {
+        // The class objects are the service instances themselves
+        serviceCache = new ServiceCache<>(instance -> (Class) instance);
+        classes = BenchmarkClasses.generate(classCount);
+        for (Class<?> clazz : classes) {
+            for (int rank = 0; rank < servicesPerClass; rank++) {
+                serviceCache.bindService(new BenchmarkServiceReference<>(rank), clazz);
+            }
+        }
+        if (snapshotReads) {
+            serviceCache.withSnapshotReads();
+        }
+    }
+
+    @Benchmark
+    public Object find() {
+        return serviceCache.find(classes[ThreadLocalRandom.current().nextInt(classes.length)]);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object find32() {
+        return serviceCache.find(classes[ThreadLocalRandom.current().nextInt(classes.length)]);
+    }
+}
@@ -0,0 +1,49 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils JMH benchmarks
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The former implementation of {@link AbstractOsgiClassBasedCache} lookups: a hash map guarded by its monitor.
+ * It is kept as the baseline of {@link ClassBasedCacheBenchmark}.
+ * @param <C>
+ * @param <O>
+ */
+public class SynchronizedClassBasedCache<C extends Class<?>, O> implements ClassBasedCache<C, O> {
+
+    private final Map<C, O> instances = new HashMap<>();
+
+    @Override
+    public O getInstance(C clazz) {
+        synchronized (instances) {
+            return instances.get(clazz);
+        }
+    }
+
+    public void addToCache(C clazz, O instance) {
+        synchronized (instances) {
+            instances.put(clazz, instance);
+        }
+    }
+}
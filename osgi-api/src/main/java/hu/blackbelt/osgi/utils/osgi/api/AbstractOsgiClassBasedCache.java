@@ -20,73 +20,239 @@ package hu.blackbelt.osgi.utils.osgi.api;
  * #L%
  */
 
+import com.google.common.base.Function;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.FrameworkUtil;
-import org.osgi.framework.SynchronousBundleListener;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * OSGi class based cache of objects. It tracks bundle lifecycle and evicts object from cache if neccesary.
+ * It is backed by a concurrent map, so lookups do not lock. The cached classes are indexed by their bundle when
+ * they are added, so a bundle event evicts the entries of that bundle only. Optionally the eviction is done in
+ * batches on an executor instead of the event dispatch thread.
+ * With weak keys the classes are not held by the cache, so an entry missed by the eviction does not pin the
+ * classloader of its bundle: it is dropped when the class is collected. It works only when the cached instance
+ * does not reference the class or its classloader.
+ * The cache can be bounded by size, weight and access time, see
+ * {@link #AbstractOsgiClassBasedCache(CacheBuilder, RemovalListener)}.
  * @param <O>
  * @param <C>
  */
 public abstract class AbstractOsgiClassBasedCache<C extends Class<?>, O> implements ClassBasedCache<C, O> {
 
-    private Map<C, O> instances = Maps.newHashMap();
+    private final Map<C, O> instances;
 
-    private SynchronousBundleListener synchronousBundleListener;
+    private final BundleClassIndex<C> bundleIndex;
+
+    private final Set<Long> pendingBundles = Sets.newConcurrentHashSet();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private volatile Executor evictionExecutor;
+
+    protected AbstractOsgiClassBasedCache() {
+        this(false);
+    }
+
+    /**
+     * @param weakKeys Reference the classes weakly (compared by identity). The instance of a class may be created
+     *                 more than once by concurrent {@link #getOrCreate(Class, Function)} calls in this mode, but
+     *                 only one of them is cached.
+     */
+    protected AbstractOsgiClassBasedCache(boolean weakKeys) {
+        this.bundleIndex = new BundleClassIndex<>(this::bundleOf, weakKeys);
+        this.instances = weakKeys ? new MapMaker().weakKeys().makeMap() : Maps.newConcurrentMap();
+    }
+
+    /**
+     * Creates a bounded cache. The policies are configured on the given builder: maximum size, maximum weight
+     * with a weigher, expire after access and weak keys. Over the bounds the least recently used entries are
+     * evicted. The listener is notified of every removed entry (evicted by a policy or a bundle event, replaced or
+     * cleared) on the thread of the cache operation which removes it, so the owner can release the resources of
+     * the instance.
+     * @param cacheBuilder The configured builder, its removal listener is set by the cache
+     * @param removalListener Listener of the removed entries or null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected AbstractOsgiClassBasedCache(CacheBuilder<? super C, ? super O> cacheBuilder,
+                                          RemovalListener<C, O> removalListener) {
+        this.bundleIndex = new BundleClassIndex<>(this::bundleOf, true);
+        CacheBuilder<C, O> builder = (CacheBuilder) cacheBuilder;
+        this.instances = builder.removalListener((RemovalNotification<C, O> notification) -> {
+            if (notification.wasEvicted() && notification.getKey() != null) {
+                bundleIndex.remove(notification.getKey());
+            }
+            if (removalListener != null) {
+                removalListener.onRemoval(notification);
+            }
+        }).build().asMap();
+    }
 
     @Override
     public O getInstance(C clazz) {
-        synchronized (instances) {
-            return instances.get(clazz);
+        O instance = instances.get(clazz);
+        if (instance != null && pendingCount.get() > 0 && evictIfPending(clazz)) {
+            return null;
         }
+        return instance;
     }
 
-    public void addToCache(C clazz, O instance) {
-        synchronized (instances) {
-            instances.put(clazz, instance);
+    /**
+     * It returns the cached instance of the class, or creates and caches it when there is none. The instance of
+     * a class is created once even if it is requested concurrently, other callers for the same class wait for
+     * it. If the factory returns null nothing is cached.
+     * @param clazz
+     * @param factory Creates the instance of the class, it must not modify the cache
+     * @return
+     */
+    public O getOrCreate(C clazz, Function<? super C, ? extends O> factory) {
+        O instance = instances.get(clazz);
+        if (instance != null && (pendingCount.get() == 0 || !evictIfPending(clazz))) {
+            return instance;
         }
+        return instances.computeIfAbsent(clazz, key -> {
+            O created = factory.apply(key);
+            if (created != null) {
+                bundleIndex.add(key);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * It caches the instance of the class. The class is indexed in the same atomic step, so a concurrent eviction of
+     * its bundle either evicts the instance or happens before it is cached.
+     * @param clazz
+     * @param instance
+     */
+    public void addToCache(C clazz, O instance) {
+        instances.compute(clazz, (key, previous) -> {
+            bundleIndex.add(key);
+            return instance;
+        });
     }
 
     public void clear() {
-        synchronized (instances) {
-            instances.clear();
+        instances.clear();
+        bundleIndex.clear();
+    }
+
+    /**
+     * It returns the bundle which defines the class, the cached instance of the class is evicted when that
+     * bundle is unresolved, updated or uninstalled.
+     * @param clazz
+     * @return The bundle or null when the class is not loaded by a bundle (it is never evicted)
+     */
+    protected Bundle bundleOf(C clazz) {
+        return FrameworkUtil.getBundle(clazz);
+    }
+
+    /**
+     * Evicts the cached instances of the classes of the given bundle. The classes indexed while the eviction is in
+     * progress are evicted too.
+     * @param bundleId
+     */
+    protected void evictBundle(long bundleId) {
+        bundleIndex.evict(bundleId, instances::remove);
+    }
+
+    /**
+     * Evicts the bundle of the class right away when its eviction is queued but not done yet, so a stale
+     * instance is never returned.
+     * @param clazz
+     * @return true if the class belongs to a bundle which is evicted
+     */
+    private boolean evictIfPending(C clazz) {
+        Bundle bundle = bundleOf(clazz);
+        if (bundle == null || !pendingBundles.contains(bundle.getBundleId())) {
+            return false;
         }
+        evictPendingBundle(bundle.getBundleId());
+        return true;
     }
 
-    public void registerListener(BundleContext bundleContext) {
-        synchronousBundleListener = new SynchronousBundleListener() {
-            @Override
-            public void bundleChanged(BundleEvent event) {
-                bundleChangedInternal(event);
+    /**
+     * Evicts a queued bundle. It is dequeued before the eviction, so an event of the bundle arriving while the
+     * eviction is in progress is queued again instead of being merged into this one.
+     */
+    private void evictPendingBundle(long bundleId) {
+        if (pendingBundles.remove(bundleId)) {
+            pendingCount.decrementAndGet();
+        }
+        evictBundle(bundleId);
+    }
+
+    private void queueEviction(long bundleId, Executor executor) {
+        pendingCount.incrementAndGet();
+        if (!pendingBundles.add(bundleId)) {
+            pendingCount.decrementAndGet();
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drainPendingEvictions);
+            } catch (RejectedExecutionException e) {
+                drainPendingEvictions();
             }
-        };
-        bundleContext.addBundleListener(synchronousBundleListener);
+        }
+    }
+
+    /**
+     * Evicts the bundles of all queued events. Repeated events of a bundle are coalesced into one eviction.
+     */
+    protected void drainPendingEvictions() {
+        drainScheduled.set(false);
+        for (Long bundleId : pendingBundles) {
+            evictPendingBundle(bundleId);
+        }
+    }
+
+    /**
+     * It registers the bundle listener which queues the evictions and does them in batches on the given
+     * executor. The listener is still synchronous, so the lookups know about the evictions in progress and
+     * never return the instance of a class whose bundle is just evicted.
+     * @param bundleContext
+     * @param executor Executor of the evictions
+     */
+    public void registerListener(BundleContext bundleContext, Executor executor) {
+        evictionExecutor = executor;
+        registerListener(bundleContext);
+    }
+
+    public void registerListener(BundleContext bundleContext) {
+        bundleIndex.registerListener(bundleContext, this::bundleChangedInternal);
     }
 
     public void unregisterListener(BundleContext bundleContext) {
-        bundleContext.removeBundleListener(synchronousBundleListener);
+        bundleIndex.unregisterListener(bundleContext);
+        drainPendingEvictions();
     }
 
     public void bundleChangedInternal(BundleEvent event) {
-
-        synchronized (instances) {
-            Set<O> instancesToRemove = Sets.newHashSet();
-            for (Map.Entry<C, O> entry : instances.entrySet()) {
-                if (event.getBundle().getBundleId() == FrameworkUtil.getBundle(entry.getKey()).getBundleId()) {
-                    instancesToRemove.add(entry.getValue());
-                }
-            }
-            for (O toRemove : instancesToRemove) {
-                instances.remove(toRemove);
-            }
+        if (!BundleClassIndex.isEviction(event)) {
+            return;
+        }
+        Executor executor = evictionExecutor;
+        if (executor != null) {
+            queueEviction(event.getBundle().getBundleId(), executor);
+        } else {
+            evictBundle(event.getBundle().getBundleId());
         }
     }
 }
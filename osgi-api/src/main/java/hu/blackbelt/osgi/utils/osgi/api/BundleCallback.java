@@ -22,6 +22,9 @@ package hu.blackbelt.osgi.utils.osgi.api;
 
 import org.osgi.framework.Bundle;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * This interface defines a callback function which can be called on
  * registration and unregistration by BundleTrackerManager.
@@ -33,5 +36,34 @@ public interface BundleCallback {
      */
     void accept(final Bundle bundle);
 
-    Thread process(final Bundle bundle);
+    /**
+     * This method returns a thread which is started by BundleTrackerManager after {@link #accept(Bundle)} and
+     * interrupted when the opposite event of the bundle arrives.
+     * @param bundle
+     * @return the thread to start or <code>null</code>
+     * @deprecated Implement {@link #process(Bundle, ExecutorService)} instead. When only this method is implemented
+     * the returned thread is still started on its own, outside of the executor of the BundleTrackerManager, and it is
+     * interrupted directly.
+     */
+    @Deprecated
+    default Thread process(final Bundle bundle) {
+        return null;
+    }
+
+    /**
+     * This method can start a background processing of the bundle after {@link #accept(Bundle)}. The tasks have to be
+     * submitted to the given executor, which is bounded and shared by all callbacks. The returned future is cancelled
+     * with interruption when the opposite event of the bundle arrives, so long running tasks have to check the
+     * interrupted state of their thread.
+     * @param bundle
+     * @param executor The executor of the BundleTrackerManager. It cannot be shut down by the callback.
+     * @return the future of the processing or <code>null</code> when there is nothing to process
+     */
+    default Future<?> process(final Bundle bundle, final ExecutorService executor) {
+        Thread thread = process(bundle);
+        if (thread == null) {
+            return null;
+        }
+        return LegacyThreadFuture.start(thread);
+    }
 }
@@ -0,0 +1,141 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Index of the cached classes by their bundle, shared by the class based caches. It also owns the bundle listener
+ * of the cache, the cache decides how the classes of a changed bundle are evicted.
+ * @param <C>
+ */
+final class BundleClassIndex<C extends Class<?>> {
+
+    private final Function<C, Bundle> bundleOf;
+
+    private final boolean weak;
+
+    private final Map<Long, Set<C>> classesByBundle = Maps.newConcurrentMap();
+
+    private SynchronousBundleListener synchronousBundleListener;
+
+    /**
+     * @param bundleOf Returns the bundle of a class or null when it is not loaded by a bundle
+     * @param weak Reference the classes weakly (compared by identity)
+     */
+    BundleClassIndex(Function<C, Bundle> bundleOf, boolean weak) {
+        this.bundleOf = bundleOf;
+        this.weak = weak;
+    }
+
+    /**
+     * Adds the class to the index of its bundle. The class is added while the set is mapped, so it cannot be added
+     * to a set which is just detached by {@link #evict(long, Consumer)}.
+     * @param clazz
+     */
+    void add(C clazz) {
+        Bundle bundle = bundleOf.apply(clazz);
+        if (bundle != null) {
+            classesByBundle.compute(bundle.getBundleId(), (bundleId, classes) -> {
+                Set<C> indexed = classes;
+                if (indexed == null) {
+                    indexed = weak
+                            ? Sets.newSetFromMap(new MapMaker().weakKeys().makeMap())
+                            : Sets.newConcurrentHashSet();
+                }
+                indexed.add(clazz);
+                return indexed;
+            });
+        }
+    }
+
+    /**
+     * Removes the class from the index of its bundle.
+     * @param clazz
+     */
+    void remove(C clazz) {
+        Bundle bundle = bundleOf.apply(clazz);
+        if (bundle != null) {
+            Set<C> classes = classesByBundle.get(bundle.getBundleId());
+            if (classes != null) {
+                classes.remove(clazz);
+            }
+        }
+    }
+
+    /**
+     * Detaches the classes of the given bundle and passes them to the eviction. The classes indexed while the
+     * eviction is in progress are evicted too.
+     * @param bundleId
+     * @param eviction Evicts the cached instance of a class
+     */
+    void evict(long bundleId, Consumer<? super C> eviction) {
+        for (Set<C> classes = classesByBundle.remove(bundleId); classes != null;
+             classes = classesByBundle.remove(bundleId)) {
+            classes.forEach(eviction);
+        }
+    }
+
+    void clear() {
+        classesByBundle.clear();
+    }
+
+    /**
+     * @param event
+     * @return true when the cached instances of the bundle of the event have to be evicted: it is unresolved,
+     * updated or uninstalled
+     */
+    static boolean isEviction(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    void registerListener(BundleContext bundleContext, Consumer<BundleEvent> handler) {
+        synchronousBundleListener = new SynchronousBundleListener() {
+            @Override
+            public void bundleChanged(BundleEvent event) {
+                handler.accept(event);
+            }
+        };
+        bundleContext.addBundleListener(synchronousBundleListener);
+    }
+
+    void unregisterListener(BundleContext bundleContext) {
+        bundleContext.removeBundleListener(synchronousBundleListener);
+    }
+}
@@ -0,0 +1,156 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgi.framework.Bundle;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Declarative bundle filter for {@link BundleTrackerManager}. Unlike an arbitrary {@link Predicate} it describes
+ * which bundles it can match, so the manager can index the registered callbacks and evaluate only the callbacks
+ * which may be interested in a bundle event.
+ */
+public final class BundleFilter implements Predicate<Bundle> {
+
+    public enum Type {
+        HEADER_PRESENT, HEADER_VALUE, SYMBOLIC_NAME
+    }
+
+    private final Type type;
+    private final String name;
+    private final String value;
+    private final Pattern pattern;
+
+    private BundleFilter(Type type, String name, String value) {
+        this.type = type;
+        this.name = name;
+        this.value = value;
+        this.pattern = type == Type.SYMBOLIC_NAME ? globToPattern(name) : null;
+    }
+
+    /**
+     * Matches the bundles having the given manifest header.
+     * @param header Name of the manifest header
+     * @return the filter
+     */
+    public static BundleFilter headerPresent(String header) {
+        return new BundleFilter(Type.HEADER_PRESENT, checkNotNull(header, "Header is required"), null);
+    }
+
+    /**
+     * Matches the bundles having the given manifest header with the given value.
+     * @param header Name of the manifest header
+     * @param value Expected value of the header
+     * @return the filter
+     */
+    public static BundleFilter headerValue(String header, String value) {
+        return new BundleFilter(Type.HEADER_VALUE, checkNotNull(header, "Header is required"),
+                checkNotNull(value, "Value is required"));
+    }
+
+    /**
+     * Matches the bundles by symbolic name. The pattern can contain <code>*</code> wildcards matching any
+     * sequence of characters, e.g. <code>hu.blackbelt.*</code>.
+     * @param pattern Symbolic name pattern
+     * @return the filter
+     */
+    public static BundleFilter symbolicName(String pattern) {
+        checkArgument(pattern != null && !pattern.isEmpty(), "Symbolic name pattern is required");
+        return new BundleFilter(Type.SYMBOLIC_NAME, pattern, null);
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = glob.indexOf('*'); i >= 0; i = glob.indexOf('*', start)) {
+            regex.append(Pattern.quote(glob.substring(start, i))).append(".*");
+            start = i + 1;
+        }
+        return Pattern.compile(regex.append(Pattern.quote(glob.substring(start))).toString());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the header name or the symbolic name pattern.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the expected header value of a {@link Type#HEADER_VALUE} filter.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the literal part of the symbolic name pattern before the first wildcard. Every matching symbolic
+     * name starts with it.
+     */
+    public String getSymbolicNamePrefix() {
+        int wildcard = name.indexOf('*');
+        return wildcard < 0 ? name : name.substring(0, wildcard);
+    }
+
+    @Override
+    public boolean test(Bundle bundle) {
+        if (bundle == null) {
+            return false;
+        }
+        if (type == Type.SYMBOLIC_NAME) {
+            return bundle.getSymbolicName() != null && pattern.matcher(bundle.getSymbolicName()).matches();
+        }
+        return type == Type.HEADER_PRESENT ? BundleUtil.hasHeader(bundle, name) : value.equals(bundle.getHeaders().get(name));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BundleFilter)) return false;
+
+        BundleFilter that = (BundleFilter) o;
+        return type == that.type && name.equals(that.name) && Objects.equals(value, that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, name, value);
+    }
+
+    @Override
+    public String toString() {
+        return "BundleFilter{" +
+                "type=" + type +
+                ", name='" + name + '\'' +
+                (value != null ? ", value='" + value + '\'' : "") +
+                '}';
+    }
+}
@@ -29,6 +29,7 @@ import java.util.function.Predicate;
  * register callbacks for all existing instance, and after any register/unregister called it calls the callbacks.
  * It is not filtering any bundle, so the callback have to determinate that
  * the bundle is suitable or not for it.
+ * The callbacks registered or unregistered from a callback are queued and take effect after the callback returned.
  *
  */
 public interface BundleTrackerManager {
@@ -40,7 +41,8 @@ public interface BundleTrackerManager {
      * @param key It is a disciriminator where the callback related to.
      * @param registerCallback The callback which is called any service registration
      * @param unregisterCallback The callback which is called any service unregistration
-     * @param filter Filtering predicate for ServiceReference.
+     * @param filter Filtering predicate for ServiceReference. A {@link BundleFilter} is indexed, so it is evaluated
+     *               only for the bundles it can match.
      */
     void registerBundleCallback(Object key, BundleCallback registerCallback, BundleCallback unregisterCallback,
                                  Predicate<Bundle> filter);
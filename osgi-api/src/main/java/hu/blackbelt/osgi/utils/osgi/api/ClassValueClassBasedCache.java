@@ -0,0 +1,147 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Function;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Class based cache of objects stored in a {@link ClassValue}. A lookup is a class value lookup, which probes the
+ * small value table of the class itself instead of a map shared by all classes, and a field load. The cache does
+ * not hold the classes, so it does not pin the classloaders of the bundles.
+ * It tracks the bundle lifecycle like {@link AbstractOsgiClassBasedCache}: the classes are indexed by their bundle
+ * when they are added, and the instances of a bundle are evicted when it is unresolved, updated or uninstalled.
+ * The cached instance should not reference its class, otherwise the class value keeps the classloader alive.
+ * @param <C>
+ * @param <O>
+ */
+public class ClassValueClassBasedCache<C extends Class<?>, O> implements ClassBasedCache<C, O> {
+
+    private volatile ClassValue<Slot<O>> slots = newSlots();
+
+    private final BundleClassIndex<C> bundleIndex = new BundleClassIndex<>(this::bundleOf, true);
+
+    @Override
+    public O getInstance(C clazz) {
+        return slots.get(clazz).instance;
+    }
+
+    /**
+     * It returns the cached instance of the class, or creates and caches it when there is none. The instance of
+     * a class is created once even if it is requested concurrently. If the factory returns null nothing is cached.
+     * @param clazz
+     * @param factory Creates the instance of the class
+     * @return
+     */
+    public O getOrCreate(C clazz, Function<? super C, ? extends O> factory) {
+        Slot<O> slot = slots.get(clazz);
+        O instance = slot.instance;
+        if (instance != null) {
+            return instance;
+        }
+        synchronized (slot) {
+            instance = slot.instance;
+            if (instance == null) {
+                instance = factory.apply(clazz);
+                if (instance != null) {
+                    slot.instance = instance;
+                    bundleIndex.add(clazz);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * It caches the instance of the class. The slot is set and indexed under its lock, like in
+     * {@link #getOrCreate(Class, Function)}.
+     * @param clazz
+     * @param instance
+     */
+    public void addToCache(C clazz, O instance) {
+        Slot<O> slot = slots.get(clazz);
+        synchronized (slot) {
+            slot.instance = instance;
+            bundleIndex.add(clazz);
+        }
+    }
+
+    /**
+     * It drops all instances. The class values are replaced, the old ones are collected with them.
+     */
+    public void clear() {
+        slots = newSlots();
+        bundleIndex.clear();
+    }
+
+    /**
+     * It returns the bundle which defines the class, the cached instance of the class is evicted when that
+     * bundle is unresolved, updated or uninstalled.
+     * @param clazz
+     * @return The bundle or null when the class is not loaded by a bundle (it is never evicted)
+     */
+    protected Bundle bundleOf(C clazz) {
+        return FrameworkUtil.getBundle(clazz);
+    }
+
+    /**
+     * Evicts the cached instances of the classes of the given bundle.
+     * @param bundleId
+     */
+    protected void evictBundle(long bundleId) {
+        ClassValue<Slot<O>> current = slots;
+        bundleIndex.evict(bundleId, clazz -> current.get(clazz).instance = null);
+    }
+
+    public void registerListener(BundleContext bundleContext) {
+        bundleIndex.registerListener(bundleContext, this::bundleChangedInternal);
+    }
+
+    public void unregisterListener(BundleContext bundleContext) {
+        bundleIndex.unregisterListener(bundleContext);
+    }
+
+    public void bundleChangedInternal(BundleEvent event) {
+        if (BundleClassIndex.isEviction(event)) {
+            evictBundle(event.getBundle().getBundleId());
+        }
+    }
+
+    private static <O> ClassValue<Slot<O>> newSlots() {
+        return new ClassValue<Slot<O>>() {
+            @Override
+            protected Slot<O> computeValue(Class<?> type) {
+                return new Slot<>();
+            }
+        };
+    }
+
+    /**
+     * Cached instance of a class.
+     * @param <O>
+     */
+    private static final class Slot<O> {
+        private volatile O instance;
+    }
+}
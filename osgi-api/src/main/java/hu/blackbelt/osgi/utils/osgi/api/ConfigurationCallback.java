@@ -20,6 +20,9 @@ package hu.blackbelt.osgi.utils.osgi.api;
  * #L%
  */
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * This interface defines a callback function which can be called on
  * change on configuration by BundleTrackerManager.
@@ -34,6 +37,24 @@ public interface ConfigurationCallback {
     /**
      * This method gets the configuration which have been called.
      * @param configurationInfo
+     * @deprecated The returned thread has never been started by ConfigurationTrackerManager, implement
+     * {@link #process(ConfigurationInfo, ExecutorService)} instead.
+     */
+    @Deprecated
+    default Thread process(final ConfigurationInfo configurationInfo) {
+        return null;
+    }
+
+    /**
+     * This method can start a background processing of the configuration after {@link #accept(ConfigurationInfo)}.
+     * The tasks have to be submitted to the given executor, which is bounded and shared by all callbacks. The returned
+     * future is cancelled with interruption when the next event of the same configuration arrives, so long running
+     * tasks have to check the interrupted state of their thread.
+     * @param configurationInfo
+     * @param executor The executor of the ConfigurationTrackerManager. It cannot be shut down by the callback.
+     * @return the future of the processing or <code>null</code> when there is nothing to process
      */
-    Thread process(final ConfigurationInfo configurationInfo);
+    default Future<?> process(final ConfigurationInfo configurationInfo, final ExecutorService executor) {
+        return null;
+    }
 }
@@ -0,0 +1,96 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future of a processing thread returned by the deprecated {@link BundleCallback#process(org.osgi.framework.Bundle)}.
+ * The thread is started by the adapter and cancelling the future interrupts the thread itself, so a thread checking
+ * its own interrupted state stops like it did before the processing was moved to an executor.
+ */
+final class LegacyThreadFuture implements Future<Void> {
+
+    private final Thread thread;
+    private volatile boolean cancelled;
+
+    private LegacyThreadFuture(Thread thread) {
+        this.thread = thread;
+    }
+
+    static Future<?> start(Thread thread) {
+        thread.start();
+        return new LegacyThreadFuture(thread);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (cancelled || !thread.isAlive()) {
+            return false;
+        }
+        cancelled = true;
+        if (mayInterruptIfRunning) {
+            thread.interrupt();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return cancelled || !thread.isAlive();
+    }
+
+    @Override
+    public Void get() throws InterruptedException {
+        checkNotCancelled();
+        thread.join();
+        checkNotCancelled();
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        checkNotCancelled();
+        unit.timedJoin(thread, timeout);
+        checkNotCancelled();
+        if (thread.isAlive()) {
+            throw new TimeoutException();
+        }
+        return null;
+    }
+
+    /**
+     * A cancelled thread may ignore the interruption, so the callers are not waiting for it.
+     */
+    private void checkNotCancelled() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+}
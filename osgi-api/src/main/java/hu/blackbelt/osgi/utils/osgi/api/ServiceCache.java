@@ -21,8 +21,13 @@ package hu.blackbelt.osgi.utils.osgi.api;
  */
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.SneakyThrows;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -31,44 +36,368 @@ import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 public class ServiceCache<O> {
 
     public static final String PROP_CLASS = "class";
     public static final String CLASS_HAVE_TO_BE_DEFINED = "Class have to be defined";
-    private final Map<Class, NavigableMap<Integer, O>> serviceMap = Maps.newConcurrentMap();
-    private final Map<ServiceReference, O> instanceCache = Maps.newConcurrentMap();
-    private final Map<ServiceReference, Map> propertiesCache = Maps.newConcurrentMap();
+    private final Map<Class, NavigableSet<Registration<O>>> serviceMap = Maps.newConcurrentMap();
+    private final Map<ServiceReference, Registration<O>> registrations = Maps.newConcurrentMap();
+    private final Map<String, Class> classNameIndex = Maps.newConcurrentMap();
+    private final AtomicLong bindSequence = new AtomicLong();
+    private final LongAdder reRankCount = new LongAdder();
+
+    private final Object snapshotLock = new Object();
+    private volatile boolean snapshotMaintained;
+    private volatile boolean snapshotReads;
+    private volatile Map<Class, List<ServiceHolder<O>>> rankedSnapshot = ImmutableMap.of();
+
+    private volatile boolean hierarchyResolution;
+    private volatile Map<Class, Optional<Class>> resolutionMemo = newResolutionMemo();
 
     private Function<Object, Class> clazzInspector;
+    private Function<ServiceReference, Class> referenceClazzInspector;
+
+    private final ServiceHolder.AccessClock accessClock = new ServiceHolder.AccessClock();
+    private long idleTimeNanos;
+    private ScheduledExecutorService idleEvictionExecutor;
+
+    private volatile ServiceCacheStatsCounter stats;
 
     public ServiceCache(Function<Object, Class> clazzInspector) {
         this.clazzInspector = clazzInspector;
     }
 
+    /**
+     * Enables the read optimized mode. The ranked instances of all classes are published as an immutable
+     * snapshot, so {@link #find(Class)} is a single volatile read and hash lookup. Bind and unbind rebuild the
+     * snapshot, so it is suitable when registration changes are rare compared to lookups.
+     * @return this cache
+     */
+    public ServiceCache<O> withSnapshotReads() {
+        synchronized (snapshotLock) {
+            // The changes are applied to the snapshot from now on, they wait for the lock until it is built
+            snapshotMaintained = true;
+            ImmutableMap.Builder<Class, List<ServiceHolder<O>>> rankedBuilder = ImmutableMap.builder();
+            for (Class clazz : serviceMap.keySet()) {
+                List<ServiceHolder<O>> ranked = rankedHolders(clazz);
+                if (!ranked.isEmpty()) {
+                    rankedBuilder.put(clazz, ranked);
+                }
+            }
+            rankedSnapshot = rankedBuilder.build();
+        }
+        snapshotReads = true;
+        return this;
+    }
+
+    /**
+     * Enables the class hierarchy aware resolution. When there is no service registered for the requested class,
+     * its superclasses and interfaces are walked (nearest first, superclass before interfaces on the same
+     * distance) and the service of the first registered type is returned. It makes subclasses and proxy classes
+     * resolvable. The resolved types (and the misses) are memoized until the set of registered classes changes.
+     * @return this cache
+     */
+    public ServiceCache<O> withHierarchyResolution() {
+        hierarchyResolution = true;
+        return this;
+    }
+
+    /**
+     * Enables the lazy service acquisition of the tracker. The tracked references are indexed by class and rank
+     * without getting the service, the service object is got on the first {@link #find(Class)} which selects the
+     * reference. It avoids the activation of delayed components which are never looked up.
+     * Because there is no instance at tracking time the class is determined from the reference.
+     * @param referenceClazzInspector Returns the class of the service from its reference
+     * @return this cache
+     */
+    public ServiceCache<O> withLazyAcquisition(Function<ServiceReference, Class> referenceClazzInspector) {
+        this.referenceClazzInspector = checkNotNull(referenceClazzInspector);
+        return this;
+    }
+
+    /**
+     * Enables the release of idle services. The services got by the cache which are not returned by any lookup
+     * within the given time are ungot, and got again transparently on the next lookup. The last access is
+     * recorded with a sampled clock which is advanced by the eviction task, so the lookups are not synchronized.
+     * Service objects returned by the cache should not be kept by the caller beyond the idle time.
+     * It has to be set before the tracker is opened. Without lazy acquisition the tracker gets the services
+     * through the cache, so they can be evicted too.
+     * @param idleTime The time after an unused service is released
+     * @param unit Unit of idle time
+     * @return this cache
+     */
+    public ServiceCache<O> withIdleEviction(long idleTime, TimeUnit unit) {
+        checkArgument(idleTime > 0, "Idle time have to be positive");
+        this.idleTimeNanos = unit.toNanos(idleTime);
+        return this;
+    }
+
+    /**
+     * Enables the recording of statistics, see {@link #getStats()}. The counters do not contend, but the lookups
+     * read the clock twice to measure their time.
+     * @param publish Register the statistics as a JMX MXBean while the tracker is open
+     * @return this cache
+     */
+    public ServiceCache<O> withStats(boolean publish) {
+        stats = new ServiceCacheStatsCounter(() -> Iterables.transform(serviceMap.values(), Set::size),
+                reRankCount::sum, publish);
+        return this;
+    }
+
+    /**
+     * @return The statistics of the cache, or null when they are not enabled
+     */
+    public ServiceCacheStats getStats() {
+        return stats;
+    }
+
     public O find(Class input) {
         checkNotNull(input, CLASS_HAVE_TO_BE_DEFINED);
-        NavigableMap<Integer, O> serviceInstances = serviceMap.get(input);
-        if (serviceInstances == null || serviceInstances.size() == 0) {
+        ServiceCacheStatsCounter counter = stats;
+        if (counter == null) {
+            return lookup(input);
+        }
+        long start = System.nanoTime();
+        O instance = lookup(input);
+        counter.recordLookup(instance != null, start);
+        return instance;
+    }
+
+    private O lookup(Class input) {
+        if (hierarchyResolution) {
+            input = resolve(input);
+            if (input == null) {
+                return null;
+            }
+        }
+        if (snapshotReads) {
+            return firstAvailable(rankedSnapshot.get(input));
+        }
+        return highestRanked(input);
+    }
+
+    /**
+     * Returns all instances registered for the given class in rank order, the highest ranked first. The result is
+     * an immutable copy, later registration changes are not reflected. The services which cannot be got (a lazily
+     * acquired service which is just unregistering) are skipped, like in {@link #find(Class)}.
+     * @param input The requested class
+     * @return The instances or an empty collection
+     */
+    public Collection<O> findAll(Class input) {
+        checkNotNull(input, CLASS_HAVE_TO_BE_DEFINED);
+        ServiceCacheStatsCounter counter = stats;
+        long start = counter != null ? System.nanoTime() : 0L;
+        Collection<O> instances = lookupAll(input);
+        if (counter != null) {
+            counter.recordLookup(!instances.isEmpty(), start);
+        }
+        return instances;
+    }
+
+    private Collection<O> lookupAll(Class input) {
+        if (hierarchyResolution) {
+            input = resolve(input);
+            if (input == null) {
+                return ImmutableList.of();
+            }
+        }
+        if (snapshotReads) {
+            return allAvailable(rankedSnapshot.getOrDefault(input, ImmutableList.of()));
+        }
+        NavigableSet<Registration<O>> serviceInstances = serviceMap.get(input);
+        if (serviceInstances == null) {
+            return ImmutableList.of();
+        }
+        return allAvailable(Iterables.transform(serviceInstances, registration -> registration.holder));
+    }
+
+    private List<O> allAvailable(Iterable<ServiceHolder<O>> ranked) {
+        ImmutableList.Builder<O> builder = ImmutableList.builder();
+        for (ServiceHolder<O> holder : ranked) {
+            O instance = holder.get();
+            if (instance != null) {
+                builder.add(instance);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the highest ranked instance of all given classes. In snapshot read mode all of them are resolved
+     * from the same snapshot.
+     * @param inputs The requested classes
+     * @return The found instances by class, classes without service are not contained
+     */
+    public Map<Class, O> findBatch(Collection<Class> inputs) {
+        checkNotNull(inputs, CLASS_HAVE_TO_BE_DEFINED);
+        Map<Class, List<ServiceHolder<O>>> current = snapshotReads ? rankedSnapshot : null;
+        ServiceCacheStatsCounter counter = stats;
+        Map<Class, O> result = Maps.newLinkedHashMapWithExpectedSize(inputs.size());
+        for (Class input : inputs) {
+            checkNotNull(input, CLASS_HAVE_TO_BE_DEFINED);
+            long start = counter != null ? System.nanoTime() : 0L;
+            Class target = hierarchyResolution ? resolve(input) : input;
+            if (target == null) {
+                if (counter != null) {
+                    counter.recordLookup(false, start);
+                }
+                continue;
+            }
+            O instance;
+            if (current != null) {
+                instance = firstAvailable(current.get(target));
+            } else {
+                instance = highestRanked(target);
+            }
+            if (counter != null) {
+                counter.recordLookup(instance != null, start);
+            }
+            if (instance != null) {
+                result.put(input, instance);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private List<ServiceHolder<O>> rankedHolders(Class input) {
+        NavigableSet<Registration<O>> serviceInstances = serviceMap.get(input);
+        if (serviceInstances == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<ServiceHolder<O>> builder = ImmutableList.builder();
+        for (Registration<O> registration : serviceInstances) {
+            builder.add(registration.holder);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the instance of the highest ranked reference. When a lazily acquired service cannot be got
+     * anymore (it is just unregistering) the next one is returned.
+     */
+    private O highestRanked(Class input) {
+        NavigableSet<Registration<O>> serviceInstances = serviceMap.get(input);
+        if (serviceInstances == null) {
             return null;
         }
-        return serviceInstances.lastEntry().getValue();
+        for (Registration<O> registration : serviceInstances) {
+            O instance = registration.holder.get();
+            if (instance != null) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first instance of the snapshot list of a class which can be got, the same way as
+     * {@link #highestRanked(Class)} skips the unregistering lazy services.
+     */
+    private O firstAvailable(List<ServiceHolder<O>> ranked) {
+        if (ranked == null) {
+            return null;
+        }
+        for (ServiceHolder<O> holder : ranked) {
+            O instance = holder.get();
+            if (instance != null) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the nearest registered type of the given class (itself included) or null when there is none.
+     * @param input The requested class
+     * @return The registered class
+     */
+    private Class resolve(Class input) {
+        Map<Class, Optional<Class>> memo = resolutionMemo;
+        Optional<Class> resolved = memo.get(input);
+        if (resolved == null) {
+            resolved = Optional.ofNullable(walkHierarchy(input));
+            memo.put(input, resolved);
+        }
+        return resolved.orElse(null);
+    }
+
+    private Class walkHierarchy(Class input) {
+        Deque<Class> queue = new ArrayDeque<>();
+        Set<Class> visited = Sets.newHashSet();
+        queue.add(input);
+        while (!queue.isEmpty()) {
+            Class clazz = queue.poll();
+            if (!visited.add(clazz)) {
+                continue;
+            }
+            if (serviceMap.containsKey(clazz)) {
+                return clazz;
+            }
+            if (clazz.getSuperclass() != null) {
+                queue.add(clazz.getSuperclass());
+            }
+            queue.addAll(Arrays.asList(clazz.getInterfaces()));
+        }
+        return null;
+    }
+
+    /**
+     * Drops the memoized hierarchy resolutions. It is called when a class gets its first or loses its last service.
+     */
+    private void invalidateResolutions() {
+        if (hierarchyResolution) {
+            resolutionMemo = newResolutionMemo();
+        }
+    }
+
+    /**
+     * The memo is weak keyed, so the requested classes (and the misses) do not pin their classloaders.
+     */
+    private static Map<Class, Optional<Class>> newResolutionMemo() {
+        return new MapMaker().weakKeys().makeMap();
+    }
+
+    /**
+     * Returns whether the hierarchy resolution of the given class is memoized.
+     * @param input The requested class
+     * @return true when the next lookup of the class does not walk the hierarchy
+     */
+    boolean isResolutionMemoized(Class input) {
+        return resolutionMemo.containsKey(input);
     }
 
     public O find(String input) {
         checkNotNull(input, CLASS_HAVE_TO_BE_DEFINED);
-        for (Class clazz : serviceMap.keySet()) {
-            if (clazz.getName().equals(input)) {
-                return find(clazz);
+        Class clazz = classNameIndex.get(input);
+        if (clazz == null) {
+            ServiceCacheStatsCounter counter = stats;
+            if (counter != null) {
+                counter.recordLookup(false, System.nanoTime());
             }
+            return null;
         }
-        return null;
+        return find(clazz);
     }
 
     public void bindService(ServiceReference serviceReference, O instance) {
@@ -76,48 +405,236 @@ public class ServiceCache<O> {
         if (clazz == null) {
             return;
         }
-        instanceCache.put(serviceReference, instance);
-        propertiesCache.put(serviceReference, ImmutableMap.of(
-                Constants.SERVICE_RANKING, PropertiesUtil.toInteger(serviceReference.getProperty(Constants.SERVICE_RANKING), 0),
-                PROP_CLASS, clazz
-        ));
+        bind(serviceReference, clazz, new ServiceHolder<>(serviceReference, null, instance, null));
+    }
+
+    /**
+     * Binds the reference without getting the service, it is got on the first lookup.
+     * @param serviceReference The reference to bind
+     * @param bundleContext The context the service is got with
+     * @return true if the reference is bound
+     */
+    private boolean bindReference(ServiceReference serviceReference, BundleContext bundleContext) {
+        Class clazz = referenceClazzInspector.apply(serviceReference);
+        if (clazz == null) {
+            return false;
+        }
+        bind(serviceReference, clazz, new ServiceHolder<>(serviceReference, bundleContext, null, accessClock));
+        return true;
+    }
 
-        Integer rank = (Integer) propertiesCache.get(serviceReference).get(Constants.SERVICE_RANKING);
+    /**
+     * Gets the service through the cache and binds it, so it can be released when it is idle.
+     * @param serviceReference The reference to bind
+     * @param bundleContext The context the service is got with
+     * @return true if the reference is bound
+     */
+    private boolean bindManagedService(ServiceReference serviceReference, BundleContext bundleContext) {
+        ServiceHolder<O> holder = new ServiceHolder<>(serviceReference, bundleContext, null, accessClock);
+        O instance = holder.get();
+        Class clazz = instance != null ? (Class) clazzInspector.apply(instance) : null;
+        if (clazz == null) {
+            holder.release();
+            return false;
+        }
+        bind(serviceReference, clazz, holder);
+        return true;
+    }
 
-        NavigableMap<Integer, O> inst = serviceMap.get(clazz);
-        if (inst == null) {
-            inst = new ConcurrentSkipListMap<>();
-            serviceMap.put(clazz, inst);
-        } else {
-            checkState(!inst.containsKey(rank),
-                    "There is another instance of service for entity %s with same rank: %s", clazz, rank);
+    /**
+     * Advances the access clock and releases the services which are not accessed within the idle time.
+     * @param now Current value of {@link System#nanoTime()}
+     */
+    void evictIdleServices(long now) {
+        accessClock.now = now;
+        long threshold = now - idleTimeNanos;
+        for (Registration<O> registration : registrations.values()) {
+            registration.holder.releaseIfIdle(threshold);
         }
-        inst.put(rank, (O) instance);
+    }
+
+    private void bind(ServiceReference serviceReference, Class clazz, ServiceHolder<O> holder) {
+        Registration<O> registration = new Registration<>(clazz,
+                PropertiesUtil.toInteger(serviceReference.getProperty(Constants.SERVICE_RANKING), 0),
+                PropertiesUtil.toLong(serviceReference.getProperty(Constants.SERVICE_ID), -1L),
+                bindSequence.incrementAndGet(), holder);
+        Registration<O> previous = registrations.put(serviceReference, registration);
+        if (previous != null) {
+            removeRegistration(previous);
+            if (previous.holder != holder) {
+                previous.holder.release();
+            }
+        }
+
+        placeRegistration(serviceReference, registration, null);
+        ServiceCacheStatsCounter counter = stats;
+        if (counter != null) {
+            counter.recordBind();
+        }
+    }
+
+    /**
+     * Updates the ranking position of the given reference when its {@link Constants#SERVICE_RANKING} is changed.
+     * The entry is moved in one step: the new position is added before the old one is removed, so there is no
+     * moment when the class has no service.
+     * @param serviceReference The modified reference
+     */
+    public void rerankService(ServiceReference serviceReference) {
+        Registration<O> current = registrations.get(serviceReference);
+        if (current == null) {
+            return;
+        }
+        int rank = PropertiesUtil.toInteger(serviceReference.getProperty(Constants.SERVICE_RANKING), 0);
+        if (rank == current.rank) {
+            return;
+        }
+        Registration<O> moved = new Registration<>(current.clazz, rank, current.serviceId, current.sequence, current.holder);
+        if (!registrations.replace(serviceReference, current, moved)) {
+            return;
+        }
+        placeRegistration(serviceReference, moved, current);
+        reRankCount.increment();
+    }
+
+    public long getReRankCount() {
+        return reRankCount.sum();
+    }
+
+    /**
+     * Adds the registration to the ranking of its class and removes the replaced one in the same atomic step.
+     * The registration is only added when it is still the current one of the reference, so a concurrent unbind
+     * cannot leave it behind.
+     */
+    private void placeRegistration(ServiceReference serviceReference, Registration<O> registration, Registration<O> replaced) {
+        Class clazz = registration.clazz;
+        boolean[] newClass = new boolean[1];
+        NavigableSet<Registration<O>> result = serviceMap.compute(clazz, (key, inst) -> {
+            if (registrations.get(serviceReference) == registration) {
+                if (inst == null) {
+                    inst = new ConcurrentSkipListSet<>(RANKING_ORDER);
+                    classNameIndex.put(key.getName(), key);
+                    newClass[0] = true;
+                }
+                inst.add(registration);
+            }
+            if (inst != null && replaced != null) {
+                inst.remove(replaced);
+            }
+            return inst == null || inst.isEmpty() ? null : inst;
+        });
+        if (result == null) {
+            unindexClassName(clazz);
+        }
+        if (newClass[0] || result == null) {
+            invalidateResolutions();
+        }
+        updateSnapshot(clazz);
     }
 
     public void unbindService(ServiceReference serviceReference) {
-        O instance = instanceCache.get(serviceReference);
-        if (instance == null) {
+        Registration<O> registration = registrations.remove(serviceReference);
+        if (registration == null) {
             return;
         }
-        Class clazz = (Class) propertiesCache.get(serviceReference).get(PROP_CLASS);
-        Integer rank = (Integer) propertiesCache.get(serviceReference).get(Constants.SERVICE_RANKING);
+        removeRegistration(registration);
+        registration.holder.release();
+        ServiceCacheStatsCounter counter = stats;
+        if (counter != null) {
+            counter.recordUnbind();
+        }
+    }
 
-        propertiesCache.remove(serviceReference);
-        instanceCache.remove(serviceReference);
+    private void removeRegistration(Registration<O> registration) {
+        Class clazz = registration.clazz;
+        NavigableSet<Registration<O>> remaining = serviceMap.computeIfPresent(clazz, (key, inst) -> {
+            inst.remove(registration);
+            return inst.isEmpty() ? null : inst;
+        });
+        if (remaining == null) {
+            unindexClassName(clazz);
+            invalidateResolutions();
+        }
+        updateSnapshot(clazz);
+    }
 
-        NavigableMap<Integer, O> inst = serviceMap.get(clazz);
-        checkState(inst != null, "There is no instance of service for entity %s", clazz);
-        checkState(inst.get(rank) == instance,
-                "The instance of crud service for entity %s in unregister is not same as in register for rank %s", clazz, rank);
-        inst.remove(rank);
-        if (inst.size() == 0) {
-            serviceMap.remove(clazz);
+    /**
+     * Republishes the snapshot with the current ranked instances of the given class. Nothing is republished when
+     * the ranking of the class is not changed, otherwise the next snapshot is built in one copy.
+     * @param clazz The class which registrations are changed
+     */
+    private void updateSnapshot(Class clazz) {
+        if (!snapshotMaintained) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            Map<Class, List<ServiceHolder<O>>> current = rankedSnapshot;
+            List<ServiceHolder<O>> ranked = rankedHolders(clazz);
+            if (ranked.equals(current.getOrDefault(clazz, ImmutableList.of()))) {
+                return;
+            }
+            ImmutableMap.Builder<Class, List<ServiceHolder<O>>> next =
+                    ImmutableMap.builderWithExpectedSize(current.size() + 1);
+            for (Map.Entry<Class, List<ServiceHolder<O>>> entry : current.entrySet()) {
+                if (entry.getKey() != clazz) {
+                    next.put(entry);
+                }
+            }
+            if (!ranked.isEmpty()) {
+                next.put(clazz, ranked);
+            }
+            rankedSnapshot = next.build();
+        }
+    }
+
+    /**
+     * Removes the name index entry of the given class. When another class with the same name (loaded by
+     * another classloader) is still registered the index is pointed to that one.
+     * @param clazz The class which has no more registered service
+     */
+    private void unindexClassName(Class clazz) {
+        if (classNameIndex.remove(clazz.getName(), clazz)) {
+            for (Class other : serviceMap.keySet()) {
+                if (other.getName().equals(clazz.getName())) {
+                    classNameIndex.putIfAbsent(other.getName(), other);
+                    return;
+                }
+            }
         }
     }
 
-    private void addToCache() {
+    /**
+     * The same order as the framework uses: higher {@link Constants#SERVICE_RANKING} first, on equal rank the
+     * lower {@link Constants#SERVICE_ID} first. Bind order breaks the tie of references without service id.
+     */
+    private static final Comparator<Registration> RANKING_ORDER = (r1, r2) -> {
+        int result = Integer.compare(r2.rank, r1.rank);
+        if (result == 0) {
+            result = Long.compare(r1.serviceId, r2.serviceId);
+        }
+        if (result == 0) {
+            result = Long.compare(r1.sequence, r2.sequence);
+        }
+        return result;
+    };
+
+    /**
+     * Ranking position of a service reference.
+     * @param <O> Type of service
+     */
+    private static final class Registration<O> {
+        private final Class clazz;
+        private final int rank;
+        private final long serviceId;
+        private final long sequence;
+        private final ServiceHolder<O> holder;
 
+        private Registration(Class clazz, int rank, long serviceId, long sequence, ServiceHolder<O> holder) {
+            this.clazz = clazz;
+            this.rank = rank;
+            this.serviceId = serviceId;
+            this.sequence = sequence;
+            this.holder = holder;
+        }
     }
 
     private  CacheServiceTracker cacheServiceTracker;
@@ -126,34 +643,64 @@ public class ServiceCache<O> {
     public void openTracker(BundleContext bundleContext, Class<O> clazz) {
         cacheServiceTracker = new CacheServiceTracker(bundleContext, clazz);
         cacheServiceTracker.open(true);
+        if (stats != null) {
+            stats.register(ServiceCache.class.getSimpleName(), clazz.getName());
+        }
+        if (idleTimeNanos > 0) {
+            idleEvictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("service-cache-idle-eviction-" + clazz.getSimpleName()).setDaemon(true).build());
+            long period = Math.max(idleTimeNanos / 2, TimeUnit.MILLISECONDS.toNanos(1));
+            idleEvictionExecutor.scheduleAtFixedRate(() -> evictIdleServices(System.nanoTime()),
+                    period, period, TimeUnit.NANOSECONDS);
+        }
     }
 
     public void closeTracker() {
+        if (idleEvictionExecutor != null) {
+            idleEvictionExecutor.shutdownNow();
+            idleEvictionExecutor = null;
+        }
         cacheServiceTracker.close();
+        if (stats != null) {
+            stats.unregister();
+        }
     }
 
-    private final class CacheServiceTracker extends ServiceTracker<O, O> {
+    /**
+     * Tracks the services. By default the tracked object is the service instance got by the tracker. In lazy and
+     * idle eviction mode the services are got by the cache and the tracked object is the reference itself.
+     */
+    private final class CacheServiceTracker extends ServiceTracker<O, Object> {
 
         private CacheServiceTracker(BundleContext bundleContext, Class<O> clazz) throws InvalidSyntaxException {
             super(bundleContext, clazz.getName(), (ServiceTrackerCustomizer) null);
         }
 
         @Override
-        public O addingService(ServiceReference<O> serviceReference) {
-            O instance = super.addingService(serviceReference);
-            bindService(serviceReference, instance);
+        public Object addingService(ServiceReference<O> serviceReference) {
+            if (referenceClazzInspector != null) {
+                return bindReference(serviceReference, context) ? serviceReference : null;
+            }
+            if (idleTimeNanos > 0) {
+                return bindManagedService(serviceReference, context) ? serviceReference : null;
+            }
+            Object instance = super.addingService(serviceReference);
+            bindService(serviceReference, (O) instance);
             return instance;
         }
 
         @Override
-        public void removedService(ServiceReference<O> serviceReference, O service) {
+        public void removedService(ServiceReference<O> serviceReference, Object service) {
             unbindService(serviceReference);
-            super.removedService(serviceReference, service);
+            if (service != serviceReference) {
+                super.removedService(serviceReference, service);
+            }
         }
 
         @Override
         public void modifiedService(ServiceReference<O> serviceReference,
-                                    O service) {
+                                    Object service) {
+            rerankService(serviceReference);
             super.modifiedService(serviceReference, service);
         }
 
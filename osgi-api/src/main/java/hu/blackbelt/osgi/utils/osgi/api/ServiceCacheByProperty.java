@@ -21,20 +21,30 @@ package hu.blackbelt.osgi.utils.osgi.api;
  */
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 public class ServiceCacheByProperty<O, K> {
@@ -42,10 +52,18 @@ public class ServiceCacheByProperty<O, K> {
     public static final String PROP_KEY = "__service_cache_property_key";
     public static final String RANK_KEY = "__service_cache_rank_key";
     public static final String PROPERTY_HAVE_TO_BE_DEFINED = "Property have to be defined";
-    private final Map<K, NavigableMap<Comparable, O>> serviceMap = Maps.newConcurrentMap();
+    private static final String HOLDER_KEY = "__service_cache_holder_key";
+    private static final String SEQUENCE_KEY = "__service_cache_sequence_key";
+    private final Map<K, NavigableMap<RankKey, ServiceHolder<O>>> serviceMap = Maps.newConcurrentMap();
     private final Map<ServiceReference, Map> propertiesCache = Maps.newConcurrentMap();
+    private final LongAdder reRankCount = new LongAdder();
+    private final AtomicLong bindSequence = new AtomicLong();
+    private volatile ServiceCacheStatsCounter stats;
+    private volatile Map<String, Index> indexes = ImmutableMap.of();
+    private volatile ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sortedKeys;
 
     private Function<O, K> inspector;
+    private String propertyName;
     private Function<ServiceReference, Comparable> ranker;
 
     private static final Function<ServiceReference, Comparable> DEFAULT_RANKER = serviceReference -> PropertiesUtil.toInteger(serviceReference.getProperty(Constants.SERVICE_RANKING), 0);
@@ -55,49 +73,548 @@ public class ServiceCacheByProperty<O, K> {
         this.ranker = ranker != null ? ranker : DEFAULT_RANKER;
     }
 
+    /**
+     * Creates a cache keyed on a service property. The services are indexed by their registration properties
+     * only, the service object is got on the first lookup which selects it. So the services which are never
+     * looked up are not got (and their delayed components are not activated). The property value is used as
+     * the key as is, so it should be a single value.
+     * @param propertyName Name of the service property the services are keyed on
+     * @param ranker Ranking of the services, service ranking by default
+     */
+    public ServiceCacheByProperty(@Nonnull String propertyName, @Nullable Function<ServiceReference, Comparable> ranker) {
+        this.propertyName = checkNotNull(propertyName, PROPERTY_HAVE_TO_BE_DEFINED);
+        this.ranker = ranker != null ? ranker : DEFAULT_RANKER;
+    }
+
+    /**
+     * Defines an additional index of the services. The services are tracked, got and ranked once, and each of
+     * them is put into every index it has a key for. A service without any key (the one of the constructor
+     * included) is not cached. Indexes have to be defined before any service is bound.
+     * @param name Name of the index, see {@link #findByIndex(String, Object)}
+     * @param indexInspector Returns the key of the service in the index, or null when it is not indexed
+     * @return this cache
+     */
+    public ServiceCacheByProperty<O, K> withIndex(@Nonnull String name, @Nonnull Function<O, ?> indexInspector) {
+        checkState(propertyName == null, "Cache keyed on service property can have property indexes only");
+        return withIndex(name, new Index(checkNotNull(indexInspector), null));
+    }
+
+    /**
+     * Defines an additional index on service properties, see {@link #withIndex(String, Function)}. With more
+     * properties the key is composite. It does not need the service object, so it can be used on caches keyed on
+     * service property.
+     * @param name Name of the index
+     * @param propertyNames Names of the service properties, the parts of the key in order
+     * @return this cache
+     */
+    public ServiceCacheByProperty<O, K> withPropertyIndex(@Nonnull String name, @Nonnull String... propertyNames) {
+        checkArgument(propertyNames.length > 0, PROPERTY_HAVE_TO_BE_DEFINED);
+        List<String> parts = ImmutableList.copyOf(propertyNames);
+        if (parts.size() == 1) {
+            return withIndex(name, new Index(null, serviceReference -> serviceReference.getProperty(parts.get(0))));
+        }
+        return withIndex(name, new Index(null, serviceReference -> {
+            ImmutableList.Builder<Object> key = ImmutableList.builder();
+            for (String part : parts) {
+                Object value = serviceReference.getProperty(part);
+                if (value == null) {
+                    return null;
+                }
+                key.add(value);
+            }
+            return key.build();
+        }));
+    }
+
+    private ServiceCacheByProperty<O, K> withIndex(String name, Index index) {
+        checkArgument(!PROP_KEY.equals(name) && !RANK_KEY.equals(name) && !HOLDER_KEY.equals(name)
+                && !SEQUENCE_KEY.equals(name)
+                && !indexes.containsKey(name), "Index %s is already defined", name);
+        checkState(propertiesCache.isEmpty(), "Indexes have to be defined before services are bound");
+        indexes = ImmutableMap.<String, Index>builder().putAll(indexes).put(name, index).build();
+        return this;
+    }
+
+    /**
+     * Defines an additional index with composite key. The key is the list of the parts, a service is not indexed
+     * when any part of its key is null. Use {@link #compositeKey(Object...)} to look it up.
+     * @param name Name of the index
+     * @param keyParts Return the parts of the key in order
+     * @return this cache
+     */
+    @SafeVarargs
+    public final ServiceCacheByProperty<O, K> withCompositeIndex(@Nonnull String name, @Nonnull Function<O, ?>... keyParts) {
+        checkArgument(keyParts.length > 0, "Key parts have to be defined");
+        List<Function<O, ?>> parts = ImmutableList.copyOf(keyParts);
+        return withIndex(name, instance -> {
+            ImmutableList.Builder<Object> key = ImmutableList.builder();
+            for (Function<O, ?> part : parts) {
+                Object value = part.apply(instance);
+                if (value == null) {
+                    return null;
+                }
+                key.add(value);
+            }
+            return key.build();
+        });
+    }
+
+    /**
+     * @param keyParts Parts of the key in the order of the composite index definition
+     * @return The key of a composite index
+     */
+    public static List<Object> compositeKey(Object... keyParts) {
+        return ImmutableList.copyOf(keyParts);
+    }
+
+    /**
+     * Enables the sorted key mode. The keys with services are kept in a skip list too, so the range, prefix,
+     * floor and ceiling queries do not scan all keys. The exact lookup of {@link #find(Object)} stays a hash
+     * lookup. It has to be enabled before any service is bound.
+     * @param comparator Order of the keys, null for the natural order
+     * @return this cache
+     */
+    public ServiceCacheByProperty<O, K> withSortedKeys(@Nullable Comparator<? super K> comparator) {
+        checkState(propertiesCache.isEmpty(), "Sorted keys have to be enabled before services are bound");
+        sortedKeys = new ConcurrentSkipListMap<>(comparator);
+        return this;
+    }
+
+    /**
+     * Enables the recording of statistics, see {@link #getStats()}. The counters do not contend, but the lookups
+     * read the clock twice to measure their time.
+     * @param publish Register the statistics as a JMX MXBean while the tracker is open
+     * @return this cache
+     */
+    public ServiceCacheByProperty<O, K> withStats(boolean publish) {
+        stats = new ServiceCacheStatsCounter(() -> Iterables.transform(serviceMap.values(), Map::size),
+                reRankCount::sum, publish);
+        return this;
+    }
+
+    /**
+     * @return The statistics of the cache, or null when they are not enabled
+     */
+    public ServiceCacheStats getStats() {
+        return stats;
+    }
+
     public O find(K input) {
         Objects.requireNonNull(input, PROPERTY_HAVE_TO_BE_DEFINED);
-        NavigableMap<Comparable, O> serviceInstances = serviceMap.get(input);
-        if (serviceInstances == null || serviceInstances.size() == 0) {
+        ServiceCacheStatsCounter counter = stats;
+        if (counter == null) {
+            return lookup(input);
+        }
+        long start = System.nanoTime();
+        O instance = lookup(input);
+        counter.recordLookup(instance != null, start);
+        return instance;
+    }
+
+    /**
+     * Returns the highest ranked service of the given key in a named index.
+     * @param indexName Name of the index
+     * @param key The key, the result of {@link #compositeKey(Object...)} for composite indexes
+     * @return The service or null when there is none
+     */
+    public O findByIndex(String indexName, Object key) {
+        Objects.requireNonNull(key, PROPERTY_HAVE_TO_BE_DEFINED);
+        Index index = indexes.get(indexName);
+        checkArgument(index != null, "Index %s is not defined", indexName);
+        ServiceCacheStatsCounter counter = stats;
+        long start = counter != null ? System.nanoTime() : 0L;
+        O instance = highestRanked(index.buckets.get(key));
+        if (counter != null) {
+            counter.recordLookup(instance != null, start);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the highest ranked service of all keys in the given range in key order.
+     * @param from Low endpoint of the keys
+     * @param fromInclusive Whether the low endpoint is included
+     * @param to High endpoint of the keys
+     * @param toInclusive Whether the high endpoint is included
+     * @return The services by key
+     */
+    public Map<K, O> findRange(@Nonnull K from, boolean fromInclusive, @Nonnull K to, boolean toInclusive) {
+        return highestRanked(sortedKeys().subMap(from, fromInclusive, to, toInclusive));
+    }
+
+    /**
+     * Returns the highest ranked service of all keys from the given key (inclusive) to the other (exclusive).
+     * @param from Low endpoint of the keys
+     * @param to High endpoint of the keys
+     * @return The services by key
+     */
+    public Map<K, O> findRange(@Nonnull K from, @Nonnull K to) {
+        return findRange(from, true, to, false);
+    }
+
+    /**
+     * Returns the highest ranked service of all keys which start with the given prefix in key order. It can be
+     * used with {@link String} keys in natural order.
+     * @param prefix The prefix of the keys
+     * @return The services by key
+     */
+    public Map<K, O> findByPrefix(@Nonnull String prefix) {
+        ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sorted = sortedKeys();
+        checkState(sorted.comparator() == null, "Prefix query needs natural order of keys");
+        ImmutableMap.Builder<K, O> result = ImmutableMap.builder();
+        for (Map.Entry<K, NavigableMap<RankKey, ServiceHolder<O>>> entry : sorted.tailMap((K) prefix).entrySet()) {
+            if (!((String) entry.getKey()).startsWith(prefix)) {
+                break;
+            }
+            O instance = highestRanked(entry.getValue());
+            if (instance != null) {
+                result.put(entry.getKey(), instance);
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Returns the highest ranked service of the greatest key less than or equal to the given key.
+     * @param key The key
+     * @return The key and its service or null when there is no such key
+     */
+    public Map.Entry<K, O> floor(@Nonnull K key) {
+        ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sorted = sortedKeys();
+        for (Map.Entry<K, NavigableMap<RankKey, ServiceHolder<O>>> entry = sorted.floorEntry(key); entry != null;
+             entry = sorted.lowerEntry(entry.getKey())) {
+            O instance = highestRanked(entry.getValue());
+            if (instance != null) {
+                return Maps.immutableEntry(entry.getKey(), instance);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the highest ranked service of the least key greater than or equal to the given key.
+     * @param key The key
+     * @return The key and its service or null when there is no such key
+     */
+    public Map.Entry<K, O> ceiling(@Nonnull K key) {
+        ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sorted = sortedKeys();
+        for (Map.Entry<K, NavigableMap<RankKey, ServiceHolder<O>>> entry = sorted.ceilingEntry(key); entry != null;
+             entry = sorted.higherEntry(entry.getKey())) {
+            O instance = highestRanked(entry.getValue());
+            if (instance != null) {
+                return Maps.immutableEntry(entry.getKey(), instance);
+            }
+        }
+        return null;
+    }
+
+    private ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sortedKeys() {
+        ConcurrentNavigableMap<K, NavigableMap<RankKey, ServiceHolder<O>>> sorted = sortedKeys;
+        checkState(sorted != null, "Sorted keys are not enabled");
+        return sorted;
+    }
+
+    private Map<K, O> highestRanked(Map<K, NavigableMap<RankKey, ServiceHolder<O>>> buckets) {
+        ImmutableMap.Builder<K, O> result = ImmutableMap.builder();
+        for (Map.Entry<K, NavigableMap<RankKey, ServiceHolder<O>>> entry : buckets.entrySet()) {
+            O instance = highestRanked(entry.getValue());
+            if (instance != null) {
+                result.put(entry.getKey(), instance);
+            }
+        }
+        return result.build();
+    }
+
+    private O lookup(K input) {
+        return highestRanked(serviceMap.get(input));
+    }
+
+    /**
+     * Returns the instance of the highest ranked service. When a lazily got service cannot be got anymore
+     * (it is just unregistering) the next one is returned.
+     */
+    private O highestRanked(NavigableMap<RankKey, ServiceHolder<O>> serviceInstances) {
+        if (serviceInstances == null) {
             return null;
         }
-        return serviceInstances.lastEntry().getValue();
+        for (ServiceHolder<O> holder : serviceInstances.values()) {
+            O instance = holder.get();
+            if (instance != null) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the keys of the service in all indexes, its rank, bind sequence and holder.
+     * @return The properties to cache or null when the service has no key at all
+     */
+    private Map properties(ServiceReference serviceReference, O instance, Comparable rank, long sequence,
+                           ServiceHolder<O> holder) {
+        ImmutableMap.Builder<String, Object> properties = ImmutableMap.builder();
+        boolean indexed = false;
+        Object prop = propertyName != null ? serviceReference.getProperty(propertyName) : inspector.apply(instance);
+        if (prop != null) {
+            properties.put(PROP_KEY, prop);
+            indexed = true;
+        }
+        for (Map.Entry<String, Index> index : indexes.entrySet()) {
+            Object key = index.getValue().keyOf(serviceReference, instance);
+            if (key != null) {
+                properties.put(index.getKey(), key);
+                indexed = true;
+            }
+        }
+        return indexed
+                ? properties.put(RANK_KEY, rank).put(SEQUENCE_KEY, sequence).put(HOLDER_KEY, holder).build()
+                : null;
     }
 
     void bindService(ServiceReference serviceReference, O instance) {
-        K prop = inspector.apply(instance);
-        if (prop == null) {
-            return;
+        bind(serviceReference, instance, new ServiceHolder<>(serviceReference, null, instance, null));
+    }
+
+    /**
+     * Binds the reference of a cache keyed on service property without getting the service.
+     * @param serviceReference The reference to bind
+     * @param bundleContext The context the service is got with on lookup
+     * @return true if the reference is bound
+     */
+    boolean bindReference(ServiceReference serviceReference, BundleContext bundleContext) {
+        return bind(serviceReference, null, new ServiceHolder<>(serviceReference, bundleContext, null, null));
+    }
+
+    private boolean bind(ServiceReference serviceReference, O instance, ServiceHolder<O> holder) {
+        Map properties = properties(serviceReference, instance, ranker.apply(serviceReference),
+                bindSequence.incrementAndGet(), holder);
+        if (properties == null) {
+            return false;
+        }
+        Map previous = propertiesCache.put(serviceReference, properties);
+        if (previous != null) {
+            removePositions(serviceReference, previous);
+            if (previous.get(HOLDER_KEY) != holder) {
+                ((ServiceHolder<O>) previous.get(HOLDER_KEY)).release();
+            }
         }
-        propertiesCache.put(serviceReference, ImmutableMap.of(
-                RANK_KEY, ranker.apply(serviceReference),
-                PROP_KEY, prop
-        ));
 
-        Comparable rank = (Comparable) propertiesCache.get(serviceReference).get(RANK_KEY);
+        RankKey rank = new RankKey(serviceReference, properties);
 
-        NavigableMap<Comparable, O> inst = serviceMap.get(prop);
-        if (inst == null) {
-            inst = new ConcurrentSkipListMap<>();
-            serviceMap.put(prop, inst);
-        } else {
-            checkState(!inst.containsKey(rank),
-                    "There is another instance of service for entity %s with same rank: %s", prop, rank);
+        K prop = (K) properties.get(PROP_KEY);
+        if (prop != null) {
+            addPosition(serviceMap, sortedKeys, prop, rank, serviceReference, properties);
+        }
+        for (Map.Entry<String, Index> index : indexes.entrySet()) {
+            Object key = properties.get(index.getKey());
+            if (key != null) {
+                addPosition(index.getValue().buckets, null, key, rank, serviceReference, properties);
+            }
+        }
+        ServiceCacheStatsCounter counter = stats;
+        if (counter != null) {
+            counter.recordBind();
         }
-        inst.put(rank, instance);
+        return true;
     }
 
+    /**
+     * Removes the service from all indexes. The positions are determined by the properties cached at bind
+     * (or last rerank) time, so the service is found even if its ranking is changed since then.
+     * @param serviceReference The reference to unbind
+     */
     void unbindService(ServiceReference serviceReference) {
-        K prop = (K)propertiesCache.get(serviceReference).get(PROP_KEY);
+        Map properties = propertiesCache.remove(serviceReference);
+        if (properties == null) {
+            return;
+        }
+        removePositions(serviceReference, properties);
+        ((ServiceHolder<O>) properties.get(HOLDER_KEY)).release();
+        ServiceCacheStatsCounter counter = stats;
+        if (counter != null) {
+            counter.recordUnbind();
+        }
+    }
+
+    /**
+     * Moves the service to its new key and / or rank position when the service or its reference is modified.
+     * The new position is added before the old one is removed, so there is no moment when
+     * {@link #find(Object)} does not return a service for the key.
+     * @param serviceReference The modified reference
+     * @param instance The service instance, null on cache keyed on service property
+     */
+    void rerankService(ServiceReference serviceReference, O instance) {
+        Map oldProperties = propertiesCache.get(serviceReference);
+        if (oldProperties == null) {
+            if (propertyName == null) {
+                bindService(serviceReference, instance);
+            }
+            return;
+        }
+        ServiceHolder<O> holder = (ServiceHolder<O>) oldProperties.get(HOLDER_KEY);
+        Comparable oldRank = (Comparable) oldProperties.get(RANK_KEY);
         Comparable rank = ranker.apply(serviceReference);
+        Map properties = properties(serviceReference, instance, rank, (Long) oldProperties.get(SEQUENCE_KEY), holder);
+        if (Objects.equals(oldProperties, properties)) {
+            return;
+        }
+        if (properties == null) {
+            unbindService(serviceReference);
+            return;
+        }
+        if (!propertiesCache.replace(serviceReference, oldProperties, properties)) {
+            return;
+        }
+
+        RankKey oldRankKey = new RankKey(serviceReference, oldProperties);
+        RankKey rankKey = new RankKey(serviceReference, properties);
+        boolean rankChanged = !Objects.equals(oldRank, rank);
+        K oldProp = (K) oldProperties.get(PROP_KEY);
+        K prop = (K) properties.get(PROP_KEY);
+        if (rankChanged || !Objects.equals(oldProp, prop)) {
+            if (prop != null) {
+                addPosition(serviceMap, sortedKeys, prop, rankKey, serviceReference, properties);
+            }
+            if (oldProp != null) {
+                removePosition(serviceMap, sortedKeys, oldProp, oldRankKey, holder);
+            }
+        }
+        for (Map.Entry<String, Index> index : indexes.entrySet()) {
+            Object oldKey = oldProperties.get(index.getKey());
+            Object key = properties.get(index.getKey());
+            if (rankChanged || !Objects.equals(oldKey, key)) {
+                if (key != null) {
+                    addPosition(index.getValue().buckets, null, key, rankKey, serviceReference, properties);
+                }
+                if (oldKey != null) {
+                    removePosition(index.getValue().buckets, null, oldKey, oldRankKey, holder);
+                }
+            }
+        }
+        reRankCount.increment();
+    }
+
+    /**
+     * Adds the service to the bucket of the key. The bucket is created in the same atomic step, and the service
+     * is only added when the given properties are still the current ones of the reference, so a concurrent
+     * unbind or rebind cannot leave it behind.
+     */
+    private <T> void addPosition(Map<T, NavigableMap<RankKey, ServiceHolder<O>>> buckets,
+                                 Map<T, NavigableMap<RankKey, ServiceHolder<O>>> sorted, T key, RankKey rank,
+                                 ServiceReference serviceReference, Map properties) {
+        buckets.compute(key, (k, inst) -> {
+            if (propertiesCache.get(serviceReference) != properties) {
+                return inst;
+            }
+            if (inst == null) {
+                inst = new ConcurrentSkipListMap<>();
+                if (sorted != null) {
+                    sorted.put(k, inst);
+                }
+            }
+            inst.put(rank, (ServiceHolder<O>) properties.get(HOLDER_KEY));
+            return inst;
+        });
+    }
 
-        propertiesCache.remove(serviceReference);
+    /**
+     * Removes the service from the bucket of the key, and the bucket itself when it becomes empty in the same
+     * atomic step. The sorted view of the buckets is maintained in the same step, so it is never ahead or behind
+     * of the hash map.
+     */
+    private <T> void removePosition(Map<T, NavigableMap<RankKey, ServiceHolder<O>>> buckets,
+                                    Map<T, NavigableMap<RankKey, ServiceHolder<O>>> sorted, T key, RankKey rank,
+                                    ServiceHolder<O> holder) {
+        buckets.computeIfPresent(key, (k, inst) -> {
+            inst.remove(rank, holder);
+            if (inst.isEmpty()) {
+                if (sorted != null) {
+                    sorted.remove(k, inst);
+                }
+                return null;
+            }
+            return inst;
+        });
+    }
+
+    private void removePositions(ServiceReference serviceReference, Map properties) {
+        RankKey rank = new RankKey(serviceReference, properties);
+        ServiceHolder<O> holder = (ServiceHolder<O>) properties.get(HOLDER_KEY);
+        K prop = (K) properties.get(PROP_KEY);
+        if (prop != null) {
+            removePosition(serviceMap, sortedKeys, prop, rank, holder);
+        }
+        for (Map.Entry<String, Index> index : indexes.entrySet()) {
+            Object key = properties.get(index.getKey());
+            if (key != null) {
+                removePosition(index.getValue().buckets, null, key, rank, holder);
+            }
+        }
+    }
+
+    public long getReRankCount() {
+        return reRankCount.sum();
+    }
+
+    /**
+     * Ranking position of a service. Higher rank comes first, on equal rank the lower
+     * {@link Constants#SERVICE_ID} comes first, the same order as the framework uses. References without (or with
+     * the same) service id are ordered by bind sequence, so two services never share a position.
+     */
+    private static final class RankKey implements Comparable<RankKey> {
+        private final Comparable rank;
+        private final long serviceId;
+        private final long sequence;
+
+        private RankKey(ServiceReference serviceReference, Map properties) {
+            this.rank = (Comparable) properties.get(RANK_KEY);
+            this.serviceId = PropertiesUtil.toLong(serviceReference.getProperty(Constants.SERVICE_ID), -1L);
+            this.sequence = (Long) properties.get(SEQUENCE_KEY);
+        }
+
+        @Override
+        public int compareTo(RankKey other) {
+            int result = other.rank.compareTo(rank);
+            if (result == 0) {
+                result = Long.compare(serviceId, other.serviceId);
+            }
+            if (result == 0) {
+                result = Long.compare(sequence, other.sequence);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RankKey)) return false;
+
+            RankKey that = (RankKey) o;
+            return serviceId == that.serviceId && sequence == that.sequence && rank.equals(that.rank);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rank, serviceId, sequence);
+        }
+    }
+
+    /**
+     * Named index of the services, the services of a key are ordered by rank. The key is got either from the
+     * service object or from the service reference.
+     */
+    private final class Index {
+        private final Function<O, ?> inspector;
+        private final Function<ServiceReference, ?> referenceInspector;
+        private final Map<Object, NavigableMap<RankKey, ServiceHolder<O>>> buckets = Maps.newConcurrentMap();
+
+        private Index(Function<O, ?> inspector, Function<ServiceReference, ?> referenceInspector) {
+            this.inspector = inspector;
+            this.referenceInspector = referenceInspector;
+        }
 
-        NavigableMap<Comparable, O> inst = serviceMap.get(prop);
-        checkState(inst != null, "There is no instance of service for entity %s", prop);
-        inst.remove(rank);
-        if (inst.size() == 0) {
-            serviceMap.remove(prop);
+        private Object keyOf(ServiceReference serviceReference, O instance) {
+            return referenceInspector != null ? referenceInspector.apply(serviceReference) : inspector.apply(instance);
         }
     }
 
@@ -106,41 +623,55 @@ public class ServiceCacheByProperty<O, K> {
     public void openTracker(BundleContext bundleContext, Class<O> clazz) {
         cacheServiceTracker = new ServiceCacheByProperty.CacheServiceTracker(bundleContext, clazz);
         cacheServiceTracker.open(true);
+        if (stats != null) {
+            stats.register(ServiceCacheByProperty.class.getSimpleName(), clazz.getName());
+        }
     }
 
     public void closeTracker() {
         cacheServiceTracker.close();
+        if (stats != null) {
+            stats.unregister();
+        }
     }
 
-    private final class CacheServiceTracker extends ServiceTracker<O, O> {
+    /**
+     * Tracks the services. The tracked object is the service instance got by the tracker, or the reference itself
+     * on cache keyed on service property where the services are got by the cache.
+     */
+    private final class CacheServiceTracker extends ServiceTracker<O, Object> {
 
         private CacheServiceTracker(BundleContext bundleContext, Class<O> clazz) {
-            super(bundleContext, clazz.getName(), null);
+            super(bundleContext, clazz.getName(), (ServiceTrackerCustomizer) null);
         }
 
         @Override
-        public O addingService(ServiceReference<O> serviceReference) {
-            O instance = super.addingService(serviceReference);
-            bindService(serviceReference, instance);
+        public Object addingService(ServiceReference<O> serviceReference) {
+            if (propertyName != null) {
+                return bindReference(serviceReference, context) ? serviceReference : null;
+            }
+            Object instance = super.addingService(serviceReference);
+            bindService(serviceReference, (O) instance);
             return instance;
         }
 
         @Override
-        public void removedService(ServiceReference<O> serviceReference, O service) {
+        public void removedService(ServiceReference<O> serviceReference, Object service) {
             unbindService(serviceReference);
-            super.removedService(serviceReference, service);
+            if (service != serviceReference) {
+                super.removedService(serviceReference, service);
+            }
         }
 
         @Override
         public void modifiedService(ServiceReference<O> serviceReference,
-                                    O service) {
-
-            Map oldProperties = propertiesCache.get(serviceReference);
-            if (oldProperties == null ||
-                    !Objects.equals(oldProperties.get(RANK_KEY), ranker.apply(serviceReference)) ||
-                    !Objects.equals(oldProperties.get(PROP_KEY), inspector.apply(service))) {
-                unbindService(serviceReference);
-                bindService(serviceReference, service);
+                                    Object service) {
+            if (propertyName == null) {
+                rerankService(serviceReference, (O) service);
+            } else if (propertiesCache.containsKey(serviceReference)) {
+                rerankService(serviceReference, null);
+            } else {
+                bindReference(serviceReference, context);
             }
         }
 
@@ -0,0 +1,90 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Statistics of a service cache. The counters are cumulative since the statistics are enabled.
+ * It is published as a JMX MXBean when the cache is asked to.
+ */
+public interface ServiceCacheStats {
+
+    /**
+     * Upper bounds (inclusive) of the bucket size histogram classes, the last class counts the larger buckets.
+     */
+    List<Integer> BUCKET_SIZE_BOUNDS = ImmutableList.of(1, 2, 4, 8, 16, 32, 64);
+
+    /**
+     * @return Number of lookups which found a service
+     */
+    long getHitCount();
+
+    /**
+     * @return Number of lookups which did not find any service
+     */
+    long getMissCount();
+
+    /**
+     * @return Ratio of hits to all lookups, 1.0 when there was no lookup
+     */
+    double getHitRate();
+
+    /**
+     * @return Total time spent in lookups in nanoseconds
+     */
+    long getTotalLookupTime();
+
+    /**
+     * @return Average time of a lookup in nanoseconds, 0.0 when there was no lookup
+     */
+    double getAverageLookupTime();
+
+    /**
+     * @return Number of bound services
+     */
+    long getBindCount();
+
+    /**
+     * @return Number of unbound services
+     */
+    long getUnbindCount();
+
+    /**
+     * @return Number of rank (or key) changes of bound services since the cache is created
+     */
+    long getReRankCount();
+
+    /**
+     * @return Number of keys which have at least one service
+     */
+    int getBucketCount();
+
+    /**
+     * Current distribution of the number of services registered for a key. The element i counts the buckets which
+     * size is greater than the bound i - 1 and not greater than the bound i of {@link #BUCKET_SIZE_BOUNDS}, the last
+     * element counts the buckets larger than the greatest bound.
+     * @return Bucket counts by size class
+     */
+    long[] getBucketSizeHistogram();
+}
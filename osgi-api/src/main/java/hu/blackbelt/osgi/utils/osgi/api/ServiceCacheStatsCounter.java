@@ -0,0 +1,167 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.SneakyThrows;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * {@link ServiceCacheStats} implementation of the caches. The counters are {@link LongAdder}s, so recording does
+ * not contend between threads. The bucket sizes and the rerank count are taken from the cache when they are read.
+ */
+final class ServiceCacheStatsCounter implements ServiceCacheStats {
+
+    static final String JMX_DOMAIN = "hu.blackbelt.osgi.utils";
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder totalLookupTime = new LongAdder();
+    private final LongAdder bindCount = new LongAdder();
+    private final LongAdder unbindCount = new LongAdder();
+    private final LongSupplier reRankCount;
+    private final Supplier<? extends Iterable<Integer>> bucketSizes;
+    private final boolean publish;
+    private ObjectName objectName;
+
+    ServiceCacheStatsCounter(Supplier<? extends Iterable<Integer>> bucketSizes, LongSupplier reRankCount, boolean publish) {
+        this.bucketSizes = bucketSizes;
+        this.reRankCount = reRankCount;
+        this.publish = publish;
+    }
+
+    void recordLookup(boolean hit, long startTime) {
+        (hit ? hitCount : missCount).increment();
+        totalLookupTime.add(System.nanoTime() - startTime);
+    }
+
+    void recordBind() {
+        bindCount.increment();
+    }
+
+    void recordUnbind() {
+        unbindCount.increment();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = hitCount.sum();
+        long lookups = hits + missCount.sum();
+        return lookups == 0 ? 1.0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getTotalLookupTime() {
+        return totalLookupTime.sum();
+    }
+
+    @Override
+    public double getAverageLookupTime() {
+        long lookups = hitCount.sum() + missCount.sum();
+        return lookups == 0 ? 0.0 : (double) totalLookupTime.sum() / lookups;
+    }
+
+    @Override
+    public long getBindCount() {
+        return bindCount.sum();
+    }
+
+    @Override
+    public long getUnbindCount() {
+        return unbindCount.sum();
+    }
+
+    @Override
+    public long getReRankCount() {
+        return reRankCount.getAsLong();
+    }
+
+    @Override
+    public int getBucketCount() {
+        int count = 0;
+        for (Integer ignored : bucketSizes.get()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long[] getBucketSizeHistogram() {
+        long[] histogram = new long[BUCKET_SIZE_BOUNDS.size() + 1];
+        for (Integer size : bucketSizes.get()) {
+            if (size > 0) {
+                int index = Collections.binarySearch(BUCKET_SIZE_BOUNDS, size);
+                histogram[index >= 0 ? index : -index - 1]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers the statistics as MXBean in the platform MBean server when publishing is enabled.
+     * @param type Type of the cache
+     * @param name Name of the tracked service type
+     */
+    @SneakyThrows
+    synchronized void register(String type, String name) {
+        if (!publish || objectName != null) {
+            return;
+        }
+        ObjectName candidate = new ObjectName(JMX_DOMAIN + ":type=" + type
+                + ",name=" + ObjectName.quote(name)
+                + ",id=" + Integer.toHexString(System.identityHashCode(this)));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ServiceCacheStats.class, true), candidate);
+        objectName = candidate;
+    }
+
+    @SneakyThrows
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+        objectName = null;
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+}
@@ -0,0 +1,95 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Service object of a reference held by the service caches. It is either given at bind time or got from the bundle
+ * context on the first access. A service got by the holder is ungot when the reference is unbound or, when the holder
+ * has an {@link AccessClock}, when it is idle.
+ * @param <O> Type of service
+ */
+final class ServiceHolder<O> {
+    private final ServiceReference reference;
+    private final BundleContext bundleContext;
+    private final AccessClock accessClock;
+    private volatile O instance;
+    private volatile long lastAccess;
+    private boolean acquired;
+    private boolean released;
+
+    ServiceHolder(ServiceReference reference, BundleContext bundleContext, O instance, AccessClock accessClock) {
+        this.reference = reference;
+        this.bundleContext = bundleContext;
+        this.instance = instance;
+        this.accessClock = accessClock;
+        if (accessClock != null) {
+            this.lastAccess = accessClock.now;
+        }
+    }
+
+    O get() {
+        if (accessClock != null) {
+            long now = accessClock.now;
+            if (lastAccess != now) {
+                lastAccess = now;
+            }
+        }
+        O current = instance;
+        if (current == null && bundleContext != null) {
+            synchronized (this) {
+                current = instance;
+                if (current == null && !released) {
+                    current = (O) bundleContext.getService(reference);
+                    acquired = current != null;
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    synchronized void releaseIfIdle(long threshold) {
+        if (acquired && lastAccess <= threshold) {
+            acquired = false;
+            instance = null;
+            bundleContext.ungetService(reference);
+        }
+    }
+
+    synchronized void release() {
+        released = true;
+        if (acquired) {
+            acquired = false;
+            instance = null;
+            bundleContext.ungetService(reference);
+        }
+    }
+
+    /**
+     * Coarse clock of service accesses. It is advanced by the idle eviction task only.
+     */
+    static final class AccessClock {
+        volatile long now = System.nanoTime();
+    }
+}
@@ -0,0 +1,333 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AbstractOsgiClassBasedCacheTest {
+
+    private final Map<Class<?>, Bundle> bundles = new HashMap<>();
+
+    private AbstractOsgiClassBasedCache<Class<?>, Object> cache;
+
+    @Before
+    public void setUp() {
+        cache = new AbstractOsgiClassBasedCache<Class<?>, Object>() {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return bundles.get(clazz);
+            }
+        };
+    }
+
+    @Test
+    public void testEvictOnBundleEvent() {
+        Bundle bundle = bundle(1L);
+        Bundle otherBundle = bundle(2L);
+        bundles.put(String.class, bundle);
+        bundles.put(Integer.class, bundle);
+        bundles.put(Long.class, otherBundle);
+        cache.addToCache(String.class, "string");
+        cache.getOrCreate(Integer.class, clazz -> "integer");
+        cache.addToCache(Long.class, "long");
+        cache.addToCache(Double.class, "double");
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.STARTED, bundle));
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.STOPPED, bundle));
+        assertThat(cache.getInstance(String.class), is("string"));
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        assertThat(cache.getInstance(String.class), nullValue());
+        assertThat(cache.getInstance(Integer.class), nullValue());
+        assertThat(cache.getInstance(Long.class), is("long"));
+        assertThat(cache.getInstance(Double.class), is("double"));
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UPDATED, otherBundle));
+        assertThat(cache.getInstance(Long.class), nullValue());
+
+        cache.addToCache(String.class, "string");
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNRESOLVED, bundle));
+        assertThat(cache.getInstance(String.class), nullValue());
+    }
+
+    @Test
+    public void testAsyncEviction() {
+        Bundle bundle = bundle(1L);
+        Bundle otherBundle = bundle(2L);
+        bundles.put(String.class, bundle);
+        bundles.put(Integer.class, bundle);
+        bundles.put(Long.class, otherBundle);
+        cache.addToCache(String.class, "string");
+        cache.addToCache(Integer.class, "integer");
+        cache.addToCache(Long.class, "long");
+        List<Runnable> tasks = new ArrayList<>();
+        BundleContext bundleContext = mock(BundleContext.class);
+        cache.registerListener(bundleContext, tasks::add);
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNRESOLVED, bundle));
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UPDATED, otherBundle));
+        assertThat(tasks.size(), is(1));
+
+        assertThat(cache.getInstance(String.class), nullValue());
+        assertThat(cache.getOrCreate(Long.class, clazz -> "new long"), is("new long"));
+
+        tasks.get(0).run();
+        assertThat(cache.getInstance(Integer.class), nullValue());
+        assertThat(cache.getInstance(Long.class), is("new long"));
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, otherBundle));
+        assertThat(tasks.size(), is(2));
+        cache.unregisterListener(bundleContext);
+        assertThat(cache.getInstance(Long.class), nullValue());
+    }
+
+    @Test
+    public void testBoundedCache() {
+        AtomicLong time = new AtomicLong();
+        List<RemovalNotification<Class<?>, Object>> removals = new ArrayList<>();
+        Bundle bundle = bundle(1L);
+        bundles.put(String.class, bundle);
+        bundles.put(Integer.class, bundle);
+        AbstractOsgiClassBasedCache<Class<?>, Object> boundedCache = new AbstractOsgiClassBasedCache<Class<?>, Object>(
+                CacheBuilder.newBuilder().maximumSize(2).expireAfterAccess(1, TimeUnit.MINUTES).ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return time.get();
+                    }
+                }), removals::add) {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return bundles.get(clazz);
+            }
+        };
+
+        boundedCache.addToCache(String.class, "string");
+        boundedCache.addToCache(Integer.class, "integer");
+        boundedCache.getInstance(String.class);
+        boundedCache.addToCache(Long.class, "long");
+        assertThat(boundedCache.getInstance(Integer.class), nullValue());
+        assertThat(removals.get(0).getKey(), is(Integer.class));
+        assertThat(removals.get(0).getCause(), is(RemovalCause.SIZE));
+
+        boundedCache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        assertThat(boundedCache.getInstance(String.class), nullValue());
+        assertThat(removals.get(1).getKey(), is(String.class));
+        assertThat(removals.get(1).getCause(), is(RemovalCause.EXPLICIT));
+
+        time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        assertThat(boundedCache.getOrCreate(Long.class, clazz -> "new long"), is("new long"));
+        assertThat(removals.get(2).getKey(), is(Long.class));
+        assertThat(removals.get(2).getCause(), is(RemovalCause.EXPIRED));
+    }
+
+    @Test
+    public void testEvictClassIndexedDuringEviction() {
+        Bundle bundle = bundle(1L);
+        bundles.put(String.class, bundle);
+        bundles.put(Integer.class, bundle);
+        AtomicBoolean added = new AtomicBoolean();
+        AtomicReference<AbstractOsgiClassBasedCache<Class<?>, Object>> cacheReference = new AtomicReference<>();
+        AbstractOsgiClassBasedCache<Class<?>, Object> boundedCache = new AbstractOsgiClassBasedCache<Class<?>, Object>(
+                CacheBuilder.newBuilder(), notification -> {
+                    // A class of the bundle is cached while the bundle is evicted
+                    if (added.compareAndSet(false, true)) {
+                        cacheReference.get().addToCache(Integer.class, "integer");
+                    }
+                }) {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return bundles.get(clazz);
+            }
+        };
+        cacheReference.set(boundedCache);
+
+        boundedCache.addToCache(String.class, "string");
+        boundedCache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        assertThat(added.get(), is(true));
+        assertThat(boundedCache.getInstance(String.class), nullValue());
+        assertThat(boundedCache.getInstance(Integer.class), nullValue());
+    }
+
+    @Test
+    public void testEventDuringAsyncEvictionIsQueued() {
+        Bundle bundle = bundle(1L);
+        bundles.put(String.class, bundle);
+        bundles.put(Integer.class, bundle);
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicBoolean raised = new AtomicBoolean();
+        AtomicReference<AbstractOsgiClassBasedCache<Class<?>, Object>> cacheReference = new AtomicReference<>();
+        AbstractOsgiClassBasedCache<Class<?>, Object> boundedCache = new AbstractOsgiClassBasedCache<Class<?>, Object>(
+                CacheBuilder.newBuilder(), notification -> {
+                    // The bundle is updated again while its previous eviction is in progress
+                    if (raised.compareAndSet(false, true)) {
+                        cacheReference.get().bundleChangedInternal(new BundleEvent(BundleEvent.UPDATED, bundle));
+                    }
+                }) {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return bundles.get(clazz);
+            }
+        };
+        cacheReference.set(boundedCache);
+        boundedCache.registerListener(mock(BundleContext.class), tasks::add);
+
+        boundedCache.addToCache(String.class, "string");
+        boundedCache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        tasks.get(0).run();
+        assertThat(raised.get(), is(true));
+
+        boundedCache.addToCache(Integer.class, "integer");
+        assertThat(boundedCache.getInstance(Integer.class), nullValue());
+    }
+
+    @Test
+    public void testWeakKeysReleaseClassLoader() throws Exception {
+        Bundle redeployedBundle = bundle(1L);
+        AbstractOsgiClassBasedCache<Class<?>, Object> weakCache = new AbstractOsgiClassBasedCache<Class<?>, Object>(true) {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return redeployedBundle;
+            }
+        };
+        List<WeakReference<ClassLoader>> classLoaders = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            // Each deployment has a new classloader, the previous one is never evicted
+            ClassLoader classLoader = new RedeployClassLoader();
+            Class<?> clazz = classLoader.loadClass(RedeployedPayload.class.getName());
+            weakCache.addToCache(clazz, "payload " + i);
+            assertThat(weakCache.getInstance(clazz), is("payload " + i));
+            classLoaders.add(new WeakReference<>(classLoader));
+        }
+
+        for (int i = 0; i < 50 && classLoaders.stream().anyMatch(reference -> reference.get() != null); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        for (WeakReference<ClassLoader> classLoader : classLoaders) {
+            assertThat(classLoader.get(), nullValue());
+        }
+    }
+
+    /**
+     * Loads its own copy of {@link RedeployedPayload}, like a new revision of a bundle.
+     */
+    private static class RedeployClassLoader extends ClassLoader {
+
+        RedeployClassLoader() {
+            super(AbstractOsgiClassBasedCacheTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!RedeployedPayload.class.getName().equals(name)) {
+                return super.loadClass(name, resolve);
+            }
+            try (InputStream inputStream = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                byte[] bytes = ByteStreams.toByteArray(inputStream);
+                return defineClass(name, bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    public static class RedeployedPayload {
+    }
+
+    private static Bundle bundle(long bundleId) {
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(bundleId);
+        return bundle;
+    }
+
+    @Test
+    public void testGetOrCreate() {
+        Object instance = new Object();
+        assertThat(cache.getInstance(String.class), nullValue());
+        assertThat(cache.getOrCreate(String.class, clazz -> instance), sameInstance(instance));
+        assertThat(cache.getOrCreate(String.class, clazz -> new Object()), sameInstance(instance));
+        assertThat(cache.getInstance(String.class), sameInstance(instance));
+
+        assertThat(cache.getOrCreate(Integer.class, clazz -> null), nullValue());
+        assertThat(cache.getInstance(Integer.class), nullValue());
+    }
+
+    @Test
+    public void testGetOrCreateConcurrently() throws Exception {
+        int threadCount = 16;
+        AtomicInteger created = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            futures.add(executorService.submit(() -> {
+                start.await();
+                return cache.getOrCreate(String.class, clazz -> {
+                    created.incrementAndGet();
+                    return new Object();
+                });
+            }));
+        }
+        start.countDown();
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+
+        Object instance = cache.getInstance(String.class);
+        for (Future<Object> future : futures) {
+            assertThat(future.get(), sameInstance(instance));
+        }
+        assertThat(created.get(), is(1));
+    }
+}
@@ -0,0 +1,76 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BundleFilterTest {
+
+    @Test
+    public void testHeaderPresent() {
+        BundleFilter filter = BundleFilter.headerPresent("Extender");
+        assertThat(filter.test(bundle("a", "Extender", "x")), is(true));
+        assertThat(filter.test(bundle("a", "Other", "x")), is(false));
+        assertThat(filter.test(null), is(false));
+    }
+
+    @Test
+    public void testHeaderValue() {
+        BundleFilter filter = BundleFilter.headerValue("Extender", "x");
+        assertThat(filter.test(bundle("a", "Extender", "x")), is(true));
+        assertThat(filter.test(bundle("a", "Extender", "y")), is(false));
+        assertThat(filter.test(bundle("a", "Other", "x")), is(false));
+    }
+
+    @Test
+    public void testSymbolicName() {
+        BundleFilter filter = BundleFilter.symbolicName("hu.blackbelt.*.impl");
+        assertThat(filter.getSymbolicNamePrefix(), is("hu.blackbelt."));
+        assertThat(filter.test(bundle("hu.blackbelt.osgi.impl")), is(true));
+        assertThat(filter.test(bundle("hu.blackbelt.osgi.api")), is(false));
+        assertThat(filter.test(bundle("huXblackbelt.osgi.impl")), is(false));
+
+        BundleFilter exact = BundleFilter.symbolicName("hu.blackbelt.osgi");
+        assertThat(exact.getSymbolicNamePrefix(), is("hu.blackbelt.osgi"));
+        assertThat(exact.test(bundle("hu.blackbelt.osgi")), is(true));
+        assertThat(exact.test(bundle("hu.blackbelt.osgi.api")), is(false));
+    }
+
+    private static Bundle bundle(String symbolicName, String... headers) {
+        Dictionary<String, String> dictionary = new Hashtable<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            dictionary.put(headers[i], headers[i + 1]);
+        }
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        when(bundle.getHeaders()).thenReturn(dictionary);
+        return bundle;
+    }
+}
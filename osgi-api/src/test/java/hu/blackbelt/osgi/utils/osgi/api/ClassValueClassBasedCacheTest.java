@@ -0,0 +1,79 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ClassValueClassBasedCacheTest {
+
+    private final Map<Class<?>, Bundle> bundles = new HashMap<>();
+
+    private ClassValueClassBasedCache<Class<?>, Object> cache;
+
+    @Before
+    public void setUp() {
+        cache = new ClassValueClassBasedCache<Class<?>, Object>() {
+            @Override
+            protected Bundle bundleOf(Class<?> clazz) {
+                return bundles.get(clazz);
+            }
+        };
+    }
+
+    @Test
+    public void testGetOrCreate() {
+        assertThat(cache.getInstance(String.class), nullValue());
+        assertThat(cache.getOrCreate(String.class, clazz -> "string"), is("string"));
+        assertThat(cache.getOrCreate(String.class, clazz -> "other"), is("string"));
+        assertThat(cache.getOrCreate(Integer.class, clazz -> null), nullValue());
+
+        cache.clear();
+        assertThat(cache.getInstance(String.class), nullValue());
+    }
+
+    @Test
+    public void testEvictOnBundleEvent() {
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getBundleId()).thenReturn(1L);
+        bundles.put(String.class, bundle);
+        cache.addToCache(String.class, "string");
+        cache.addToCache(Long.class, "long");
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.STOPPED, bundle));
+        assertThat(cache.getInstance(String.class), is("string"));
+
+        cache.bundleChangedInternal(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+        assertThat(cache.getInstance(String.class), nullValue());
+        assertThat(cache.getInstance(Long.class), is("long"));
+    }
+}
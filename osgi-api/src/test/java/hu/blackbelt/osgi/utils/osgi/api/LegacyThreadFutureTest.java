@@ -0,0 +1,79 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class LegacyThreadFutureTest {
+
+    @Test(timeout = 10000)
+    public void testCancelledThreadIgnoringInterruption() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // The interruption is ignored
+                }
+            }
+        });
+        Future<?> future = LegacyThreadFuture.start(thread);
+
+        assertThat(future.cancel(true), is(true));
+        assertThat(future.isCancelled(), is(true));
+        assertThat(future.isDone(), is(true));
+        assertCancelled(() -> future.get());
+        assertCancelled(() -> future.get(1, TimeUnit.MINUTES));
+        assertThat(thread.isAlive(), is(true));
+
+        release.countDown();
+        thread.join();
+    }
+
+    @Test(timeout = 10000)
+    public void testCompletedThread() throws Exception {
+        Future<?> future = LegacyThreadFuture.start(new Thread(() -> { }));
+
+        future.get();
+        assertThat(future.isDone(), is(true));
+        assertThat(future.cancel(true), is(false));
+        assertThat(future.isCancelled(), is(false));
+    }
+
+    private static void assertCancelled(Callable<?> call) throws Exception {
+        try {
+            call.call();
+            throw new AssertionError("CancellationException expected");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static hu.blackbelt.osgi.utils.osgi.api.ServiceCacheByProperty.compositeKey;
+import static hu.blackbelt.osgi.utils.osgi.api.ServiceCacheTest.serviceReference;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ServiceCacheByPropertyTest {
+
+    private static final String ENTITY_NAME = "entity.name";
+    private static final String TENANT = "tenant";
+
+    private ServiceCacheByProperty<TestService, String> serviceCache;
+
+    @Before
+    public void setUp() {
+        serviceCache = new ServiceCacheByProperty<>(instance -> instance.name, null);
+    }
+
+    @Test
+    public void testFindHighestRanked() {
+        ServiceReference lowReference = serviceReference(1L, 0);
+        ServiceReference highReference = serviceReference(2L, 10);
+        TestService lowService = new TestService("crm");
+        TestService highService = new TestService("crm");
+        serviceCache.bindService(lowReference, lowService);
+        serviceCache.bindService(highReference, highService);
+
+        assertThat(serviceCache.find("crm"), sameInstance(highService));
+        assertThat(serviceCache.find("hr"), nullValue());
+
+        serviceCache.unbindService(highReference);
+        assertThat(serviceCache.find("crm"), sameInstance(lowService));
+
+        serviceCache.unbindService(lowReference);
+        assertThat(serviceCache.find("crm"), nullValue());
+    }
+
+    @Test
+    public void testEqualRankOrderedByServiceId() {
+        ServiceReference firstReference = serviceReference(5L, 0);
+        ServiceReference secondReference = serviceReference(7L, 0);
+        TestService firstService = new TestService("crm");
+        TestService secondService = new TestService("crm");
+        serviceCache.bindService(secondReference, secondService);
+        serviceCache.bindService(firstReference, firstService);
+
+        assertThat(serviceCache.find("crm"), sameInstance(firstService));
+
+        serviceCache.unbindService(firstReference);
+        assertThat(serviceCache.find("crm"), sameInstance(secondService));
+    }
+
+    @Test
+    public void testEqualRankAndServiceIdKeepsBothServices() {
+        ServiceReference firstReference = serviceReference(-1L, 0);
+        ServiceReference secondReference = serviceReference(-1L, 0);
+        TestService firstService = new TestService("crm");
+        TestService secondService = new TestService("crm");
+        serviceCache.bindService(firstReference, firstService);
+        serviceCache.bindService(secondReference, secondService);
+
+        assertThat(serviceCache.find("crm"), sameInstance(firstService));
+
+        serviceCache.unbindService(firstReference);
+        assertThat(serviceCache.find("crm"), sameInstance(secondService));
+
+        serviceCache.unbindService(secondReference);
+        assertThat(serviceCache.find("crm"), nullValue());
+    }
+
+    @Test
+    public void testUnbindAfterRankingChanged() {
+        ServiceReference reference = serviceReference(1L, 0);
+        serviceCache.bindService(reference, new TestService("crm"));
+
+        when(reference.getProperty(Constants.SERVICE_RANKING)).thenReturn(10);
+        serviceCache.unbindService(reference);
+        assertThat(serviceCache.find("crm"), nullValue());
+    }
+
+    @Test
+    public void testConcurrentChurn() throws Exception {
+        int threadCount = 8;
+        int operationsPerThread = 20000;
+        int referenceCount = 2000;
+        List<String> keys = ImmutableList.of("a0", "a1", "a2", "a3", "b0", "b1", "b2", "b3");
+        Map<ServiceReference, Integer> ranks = new ConcurrentHashMap<>();
+        Map<TestService, String> serviceKeys = new ConcurrentHashMap<>();
+        ServiceCacheByProperty<TestService, String> churnCache = new ServiceCacheByProperty<TestService, String>(
+                serviceKeys::get, ranks::get)
+                .withIndex("group", instance -> serviceKeys.get(instance).substring(0, 1))
+                .withStats(false);
+
+        List<ServiceReference> references = new ArrayList<>();
+        Map<ServiceReference, TestService> services = new HashMap<>();
+        for (int i = 0; i < referenceCount; i++) {
+            ServiceReference reference = serviceReference(i, 0);
+            TestService service = new TestService(null);
+            references.add(reference);
+            services.put(reference, service);
+            ranks.put(reference, 0);
+            serviceKeys.put(service, keys.get(i % keys.size()));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            futures.add(executorService.submit(() -> {
+                Random random = new Random();
+                for (int i = 0; i < operationsPerThread; i++) {
+                    ServiceReference reference = references.get(random.nextInt(referenceCount));
+                    TestService service = services.get(reference);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            churnCache.bindService(reference, service);
+                            break;
+                        case 1:
+                            ranks.put(reference, random.nextInt(4));
+                            serviceKeys.put(service, keys.get(random.nextInt(keys.size())));
+                            churnCache.rerankService(reference, service);
+                            break;
+                        case 2:
+                            churnCache.unbindService(reference);
+                            break;
+                        default:
+                            churnCache.find(keys.get(random.nextInt(keys.size())));
+                            churnCache.findByIndex("group", "a");
+                    }
+                }
+            }));
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        for (ServiceReference reference : references) {
+            churnCache.unbindService(reference);
+        }
+        assertThat(churnCache.getStats().getBucketCount(), is(0));
+        for (String key : keys) {
+            assertThat(churnCache.find(key), nullValue());
+        }
+        assertThat(churnCache.findByIndex("group", "a"), nullValue());
+        assertThat(churnCache.findByIndex("group", "b"), nullValue());
+    }
+
+    @Test
+    public void testStats() {
+        ServiceReference reference = serviceReference(1L, 0);
+        serviceCache.withStats(false);
+        serviceCache.bindService(reference, new TestService("crm"));
+
+        serviceCache.find("crm");
+        serviceCache.find("hr");
+        serviceCache.unbindService(reference);
+
+        ServiceCacheStats stats = serviceCache.getStats();
+        assertThat(stats.getHitCount(), is(1L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getBindCount(), is(1L));
+        assertThat(stats.getUnbindCount(), is(1L));
+        assertThat(stats.getBucketCount(), is(0));
+    }
+
+    @Test
+    public void testRerank() {
+        ServiceReference firstReference = serviceReference(1L, 0);
+        ServiceReference secondReference = serviceReference(2L, 5);
+        TestService firstService = new TestService("crm");
+        TestService secondService = new TestService("crm");
+        serviceCache.bindService(firstReference, firstService);
+        serviceCache.bindService(secondReference, secondService);
+        assertThat(serviceCache.find("crm"), sameInstance(secondService));
+
+        when(firstReference.getProperty(Constants.SERVICE_RANKING)).thenReturn(10);
+        serviceCache.rerankService(firstReference, firstService);
+        assertThat(serviceCache.find("crm"), sameInstance(firstService));
+        assertThat(serviceCache.getReRankCount(), is(1L));
+
+        firstService.name = "hr";
+        serviceCache.rerankService(firstReference, firstService);
+        assertThat(serviceCache.find("crm"), sameInstance(secondService));
+        assertThat(serviceCache.find("hr"), sameInstance(firstService));
+        assertThat(serviceCache.getReRankCount(), is(2L));
+
+        serviceCache.unbindService(firstReference);
+        assertThat(serviceCache.find("hr"), nullValue());
+    }
+
+    @Test
+    public void testCompositeIndex() {
+        serviceCache.withIndex("tenant", instance -> instance.tenant)
+                .withCompositeIndex("tenantName", instance -> instance.tenant, instance -> instance.name);
+        ServiceReference firstReference = serviceReference(1L, 0);
+        ServiceReference secondReference = serviceReference(2L, 5);
+        TestService firstService = new TestService("crm", "acme");
+        TestService secondService = new TestService("hr", "acme");
+        serviceCache.bindService(firstReference, firstService);
+        serviceCache.bindService(secondReference, secondService);
+
+        assertThat(serviceCache.find("crm"), sameInstance(firstService));
+        assertThat(serviceCache.findByIndex("tenant", "acme"), sameInstance(secondService));
+        assertThat(serviceCache.findByIndex("tenantName", compositeKey("acme", "crm")), sameInstance(firstService));
+        assertThat(serviceCache.findByIndex("tenantName", compositeKey("acme", "sales")), nullValue());
+
+        when(firstReference.getProperty(Constants.SERVICE_RANKING)).thenReturn(10);
+        firstService.tenant = "other";
+        serviceCache.rerankService(firstReference, firstService);
+        assertThat(serviceCache.findByIndex("tenantName", compositeKey("acme", "crm")), nullValue());
+        assertThat(serviceCache.findByIndex("tenantName", compositeKey("other", "crm")), sameInstance(firstService));
+        assertThat(serviceCache.findByIndex("tenant", "other"), sameInstance(firstService));
+
+        firstService.tenant = "acme";
+        serviceCache.rerankService(firstReference, firstService);
+        assertThat(serviceCache.findByIndex("tenant", "acme"), sameInstance(firstService));
+
+        serviceCache.unbindService(firstReference);
+        serviceCache.unbindService(secondReference);
+        assertThat(serviceCache.findByIndex("tenant", "acme"), nullValue());
+        assertThat(serviceCache.findByIndex("tenantName", compositeKey("acme", "hr")), nullValue());
+    }
+
+    @Test
+    public void testKeyedOnServiceProperty() {
+        ServiceCacheByProperty<TestService, String> propertyCache = new ServiceCacheByProperty<TestService, String>(ENTITY_NAME, null)
+                .withPropertyIndex("tenantName", TENANT, ENTITY_NAME);
+        ServiceReference crmReference = serviceReference(1L, 0);
+        ServiceReference hrReference = serviceReference(2L, 0);
+        when(crmReference.getProperty(ENTITY_NAME)).thenReturn("crm");
+        when(crmReference.getProperty(TENANT)).thenReturn("acme");
+        when(hrReference.getProperty(ENTITY_NAME)).thenReturn("hr");
+        TestService crmService = new TestService("crm");
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.getService(crmReference)).thenReturn(crmService);
+
+        assertThat(propertyCache.bindReference(crmReference, bundleContext), is(true));
+        assertThat(propertyCache.bindReference(hrReference, bundleContext), is(true));
+        assertThat(propertyCache.bindReference(serviceReference(3L, 0), bundleContext), is(false));
+        verify(bundleContext, never()).getService(any(ServiceReference.class));
+
+        assertThat(propertyCache.find("crm"), sameInstance(crmService));
+        assertThat(propertyCache.findByIndex("tenantName", compositeKey("acme", "crm")), sameInstance(crmService));
+        assertThat(propertyCache.findByIndex("tenantName", compositeKey("acme", "hr")), nullValue());
+        verify(bundleContext, times(1)).getService(crmReference);
+        verify(bundleContext, never()).getService(hrReference);
+
+        when(crmReference.getProperty(ENTITY_NAME)).thenReturn("sales");
+        propertyCache.rerankService(crmReference, null);
+        assertThat(propertyCache.find("crm"), nullValue());
+        assertThat(propertyCache.find("sales"), sameInstance(crmService));
+
+        propertyCache.unbindService(crmReference);
+        propertyCache.unbindService(hrReference);
+        assertThat(propertyCache.find("sales"), nullValue());
+        verify(bundleContext, times(1)).getService(crmReference);
+        verify(bundleContext, times(1)).ungetService(crmReference);
+        verify(bundleContext, never()).ungetService(hrReference);
+    }
+
+    @Test
+    public void testSortedKeys() {
+        serviceCache.withSortedKeys(null);
+        TestService crmService = new TestService("crm.customer");
+        TestService crmOrderService = new TestService("crm.order");
+        TestService crmOrderOverridingService = new TestService("crm.order");
+        TestService hrService = new TestService("hr.employee");
+        serviceCache.bindService(serviceReference(1L, 0), crmService);
+        serviceCache.bindService(serviceReference(2L, 0), crmOrderService);
+        serviceCache.bindService(serviceReference(3L, 10), crmOrderOverridingService);
+        ServiceReference hrReference = serviceReference(4L, 0);
+        serviceCache.bindService(hrReference, hrService);
+
+        assertThat(serviceCache.find("crm.order"), sameInstance(crmOrderOverridingService));
+        assertThat(serviceCache.findByPrefix("crm.").keySet(), contains("crm.customer", "crm.order"));
+        assertThat(serviceCache.findByPrefix("crm.").get("crm.order"), sameInstance(crmOrderOverridingService));
+        assertThat(serviceCache.findRange("crm.order", "hr.employee").keySet(), contains("crm.order"));
+        assertThat(serviceCache.findRange("crm.order", false, "hr.employee", true).keySet(), contains("hr.employee"));
+        assertThat(serviceCache.floor("crm.p").getValue(), sameInstance(crmOrderOverridingService));
+        assertThat(serviceCache.ceiling("crm.p").getValue(), sameInstance(hrService));
+        assertThat(serviceCache.floor("a"), nullValue());
+
+        serviceCache.unbindService(hrReference);
+        assertThat(serviceCache.ceiling("crm.p"), nullValue());
+        assertThat(serviceCache.findByPrefix("hr.").isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRangeWithoutSortedKeys() {
+        serviceCache.findRange("a", "b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndefinedIndex() {
+        serviceCache.findByIndex("tenant", "acme");
+    }
+
+    static class TestService {
+        String name;
+        String tenant;
+
+        TestService(String name) {
+            this.name = name;
+        }
+
+        TestService(String name, String tenant) {
+            this.name = name;
+            this.tenant = tenant;
+        }
+    }
+}
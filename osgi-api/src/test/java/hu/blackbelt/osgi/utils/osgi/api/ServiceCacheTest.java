@@ -0,0 +1,472 @@
+package hu.blackbelt.osgi.utils.osgi.api;
+
+
+/*-
+ * #%L
+ * OSGi utils API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class ServiceCacheTest {
+
+    private static final String ENTITY_CLASS = "entity.class";
+
+    private ServiceCache<TestService> serviceCache;
+
+    @Before
+    public void setUp() {
+        serviceCache = new ServiceCache<>(instance -> ((TestService) instance).entityClass);
+    }
+
+    @Test
+    public void testFindByName() {
+        TestService stringService = new TestService(String.class);
+        TestService integerService = new TestService(Integer.class);
+        serviceCache.bindService(serviceReference(1L, 0), stringService);
+        serviceCache.bindService(serviceReference(2L, 0), integerService);
+
+        assertThat(serviceCache.find(String.class.getName()), sameInstance(stringService));
+        assertThat(serviceCache.find(Integer.class.getName()), sameInstance(integerService));
+        assertThat(serviceCache.find(Long.class.getName()), nullValue());
+    }
+
+    @Test
+    public void testFindByNameAfterUnbind() {
+        ServiceReference stringReference = serviceReference(1L, 0);
+        ServiceReference overridingStringReference = serviceReference(2L, 10);
+        TestService stringService = new TestService(String.class);
+        TestService overridingStringService = new TestService(String.class);
+        serviceCache.bindService(stringReference, stringService);
+        serviceCache.bindService(overridingStringReference, overridingStringService);
+
+        assertThat(serviceCache.find(String.class.getName()), sameInstance(overridingStringService));
+
+        serviceCache.unbindService(overridingStringReference);
+        assertThat(serviceCache.find(String.class.getName()), sameInstance(stringService));
+
+        serviceCache.unbindService(stringReference);
+        assertThat(serviceCache.find(String.class.getName()), nullValue());
+        assertThat(serviceCache.find(String.class), is(nullValue()));
+    }
+
+    @Test
+    public void testSnapshotReads() {
+        ServiceReference stringReference = serviceReference(1L, 0);
+        ServiceReference overridingStringReference = serviceReference(2L, 10);
+        TestService stringService = new TestService(String.class);
+        TestService overridingStringService = new TestService(String.class);
+        serviceCache.bindService(stringReference, stringService);
+        serviceCache.withSnapshotReads();
+
+        assertThat(serviceCache.find(String.class), sameInstance(stringService));
+
+        serviceCache.bindService(overridingStringReference, overridingStringService);
+        assertThat(serviceCache.find(String.class), sameInstance(overridingStringService));
+        assertThat(serviceCache.find(String.class.getName()), sameInstance(overridingStringService));
+
+        serviceCache.unbindService(overridingStringReference);
+        assertThat(serviceCache.find(String.class), sameInstance(stringService));
+
+        serviceCache.unbindService(stringReference);
+        assertThat(serviceCache.find(String.class), nullValue());
+    }
+
+    @Test
+    public void testFindAll() {
+        TestService lowService = new TestService(String.class);
+        TestService highService = new TestService(String.class);
+        serviceCache.bindService(serviceReference(1L, 0), lowService);
+        serviceCache.bindService(serviceReference(2L, 10), highService);
+
+        Collection<TestService> all = serviceCache.findAll(String.class);
+        assertThat(all, contains(highService, lowService));
+        assertThat(serviceCache.findAll(Integer.class), empty());
+
+        TestService middleService = new TestService(String.class);
+        serviceCache.bindService(serviceReference(3L, 5), middleService);
+        assertThat(all, contains(highService, lowService));
+        assertThat(serviceCache.findAll(String.class), contains(highService, middleService, lowService));
+
+        serviceCache.withSnapshotReads();
+        assertThat(serviceCache.findAll(String.class), contains(highService, middleService, lowService));
+    }
+
+    @Test
+    public void testFindBatch() {
+        TestService stringService = new TestService(String.class);
+        TestService integerService = new TestService(Integer.class);
+        serviceCache.bindService(serviceReference(1L, 0), stringService);
+        serviceCache.bindService(serviceReference(2L, 0), integerService);
+
+        Map<Class, TestService> found = serviceCache.findBatch(ImmutableList.of(String.class, Integer.class, Long.class));
+        assertThat(found.size(), is(2));
+        assertThat(found.get(String.class), sameInstance(stringService));
+        assertThat(found.get(Integer.class), sameInstance(integerService));
+
+        serviceCache.withSnapshotReads();
+        assertThat(serviceCache.findBatch(ImmutableList.of(String.class, Integer.class, Long.class)), is(found));
+    }
+
+    @Test
+    public void testHierarchyResolution() {
+        serviceCache.withHierarchyResolution();
+        ServiceReference numberReference = serviceReference(1L, 0);
+        ServiceReference integerReference = serviceReference(2L, 0);
+        ServiceReference charSequenceReference = serviceReference(3L, 0);
+        TestService numberService = new TestService(Number.class);
+        TestService integerService = new TestService(Integer.class);
+        TestService charSequenceService = new TestService(CharSequence.class);
+
+        assertThat(serviceCache.find(Integer.class), nullValue());
+
+        serviceCache.bindService(numberReference, numberService);
+        assertThat(serviceCache.find(Integer.class), sameInstance(numberService));
+        assertThat(serviceCache.find(Long.class), sameInstance(numberService));
+
+        serviceCache.bindService(integerReference, integerService);
+        assertThat(serviceCache.find(Integer.class), sameInstance(integerService));
+        assertThat(serviceCache.find(Long.class), sameInstance(numberService));
+
+        serviceCache.bindService(charSequenceReference, charSequenceService);
+        assertThat(serviceCache.find(String.class), sameInstance(charSequenceService));
+
+        serviceCache.unbindService(numberReference);
+        assertThat(serviceCache.find(Long.class), nullValue());
+        assertThat(serviceCache.find(Integer.class), sameInstance(integerService));
+    }
+
+    @Test
+    public void testHierarchyResolutionMemo() {
+        serviceCache.withHierarchyResolution();
+        ServiceReference numberReference = serviceReference(1L, 0);
+        ServiceReference otherNumberReference = serviceReference(2L, 0);
+        serviceCache.bindService(numberReference, new TestService(Number.class));
+
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(false));
+        serviceCache.find(Integer.class);
+        serviceCache.find(String.class);
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(true));
+        assertThat(serviceCache.isResolutionMemoized(String.class), is(true));
+
+        serviceCache.bindService(otherNumberReference, new TestService(Number.class));
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(true));
+
+        serviceCache.bindService(serviceReference(3L, 0), new TestService(CharSequence.class));
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(false));
+        assertThat(serviceCache.isResolutionMemoized(String.class), is(false));
+
+        serviceCache.find(Integer.class);
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(true));
+        serviceCache.unbindService(numberReference);
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(true));
+        serviceCache.unbindService(otherNumberReference);
+        assertThat(serviceCache.isResolutionMemoized(Integer.class), is(false));
+        assertThat(serviceCache.find(Integer.class), nullValue());
+    }
+
+    @Test
+    public void testWithoutHierarchyResolution() {
+        serviceCache.bindService(serviceReference(1L, 0), new TestService(Number.class));
+
+        assertThat(serviceCache.find(Integer.class), nullValue());
+    }
+
+    @Test
+    public void testRerank() {
+        ServiceReference firstReference = serviceReference(1L, 0);
+        ServiceReference secondReference = serviceReference(2L, 5);
+        TestService firstService = new TestService(String.class);
+        TestService secondService = new TestService(String.class);
+        serviceCache.bindService(firstReference, firstService);
+        serviceCache.bindService(secondReference, secondService);
+        assertThat(serviceCache.find(String.class), sameInstance(secondService));
+
+        when(firstReference.getProperty(Constants.SERVICE_RANKING)).thenReturn(10);
+        serviceCache.rerankService(firstReference);
+        assertThat(serviceCache.find(String.class), sameInstance(firstService));
+        assertThat(serviceCache.findAll(String.class), contains(firstService, secondService));
+        assertThat(serviceCache.getReRankCount(), is(1L));
+
+        serviceCache.rerankService(firstReference);
+        assertThat(serviceCache.getReRankCount(), is(1L));
+
+        serviceCache.unbindService(firstReference);
+        assertThat(serviceCache.findAll(String.class), contains(secondService));
+    }
+
+    @Test
+    public void testLazyAcquisition() throws Exception {
+        ServiceReference lowReference = serviceReference(1L, 0);
+        ServiceReference highReference = serviceReference(2L, 10);
+        when(lowReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        when(highReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        TestService lowService = new TestService(String.class);
+        TestService highService = new TestService(String.class);
+
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.createFilter(anyString())).thenReturn(mock(Filter.class));
+        when(bundleContext.getAllServiceReferences(TestService.class.getName(), null))
+                .thenReturn(new ServiceReference[] {lowReference, highReference});
+        when(bundleContext.getService(lowReference)).thenReturn(lowService);
+        when(bundleContext.getService(highReference)).thenReturn(highService);
+
+        serviceCache.withLazyAcquisition(reference -> (Class) reference.getProperty(ENTITY_CLASS));
+        serviceCache.openTracker(bundleContext, TestService.class);
+        verify(bundleContext, never()).getService(any(ServiceReference.class));
+
+        assertThat(serviceCache.find(String.class), sameInstance(highService));
+        assertThat(serviceCache.find(String.class), sameInstance(highService));
+        verify(bundleContext, times(1)).getService(highReference);
+        verify(bundleContext, never()).getService(lowReference);
+
+        serviceCache.closeTracker();
+        verify(bundleContext, times(1)).ungetService(highReference);
+        verify(bundleContext, never()).ungetService(lowReference);
+        assertThat(serviceCache.find(String.class), nullValue());
+    }
+
+    @Test
+    public void testSnapshotReadsSkipUnavailableService() throws Exception {
+        ServiceReference lowReference = serviceReference(1L, 0);
+        ServiceReference highReference = serviceReference(2L, 10);
+        when(lowReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        when(highReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        TestService lowService = new TestService(String.class);
+
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.createFilter(anyString())).thenReturn(mock(Filter.class));
+        when(bundleContext.getAllServiceReferences(TestService.class.getName(), null))
+                .thenReturn(new ServiceReference[] {lowReference, highReference});
+        when(bundleContext.getService(lowReference)).thenReturn(lowService);
+        when(bundleContext.getService(highReference)).thenReturn(null);
+
+        serviceCache.withSnapshotReads();
+        serviceCache.withLazyAcquisition(reference -> (Class) reference.getProperty(ENTITY_CLASS));
+        serviceCache.openTracker(bundleContext, TestService.class);
+
+        assertThat(serviceCache.find(String.class), sameInstance(lowService));
+        assertThat(serviceCache.findBatch(ImmutableList.of(String.class)).get(String.class), sameInstance(lowService));
+        serviceCache.closeTracker();
+    }
+
+    @Test
+    public void testFindAllSkipsUnavailableServices() throws Exception {
+        ServiceReference lowReference = serviceReference(1L, 0);
+        ServiceReference highReference = serviceReference(2L, 10);
+        when(lowReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        when(highReference.getProperty(ENTITY_CLASS)).thenReturn(String.class);
+        TestService lowService = new TestService(String.class);
+
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.createFilter(anyString())).thenReturn(mock(Filter.class));
+        when(bundleContext.getAllServiceReferences(TestService.class.getName(), null))
+                .thenReturn(new ServiceReference[] {lowReference, highReference});
+        when(bundleContext.getService(lowReference)).thenReturn(lowService);
+        when(bundleContext.getService(highReference)).thenReturn(null);
+
+        serviceCache.withStats(false);
+        serviceCache.withLazyAcquisition(reference -> (Class) reference.getProperty(ENTITY_CLASS));
+        serviceCache.openTracker(bundleContext, TestService.class);
+        assertThat(serviceCache.findAll(String.class), contains(lowService));
+
+        when(bundleContext.getService(lowReference)).thenReturn(null);
+        serviceCache.unbindService(lowReference);
+        assertThat(serviceCache.findAll(String.class), empty());
+        assertThat(serviceCache.getStats().getHitCount(), is(1L));
+        assertThat(serviceCache.getStats().getMissCount(), is(1L));
+
+        serviceCache.withSnapshotReads();
+        assertThat(serviceCache.findAll(String.class), empty());
+        serviceCache.closeTracker();
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        ServiceReference reference = serviceReference(1L, 0);
+        TestService service = new TestService(String.class);
+
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.createFilter(anyString())).thenReturn(mock(Filter.class));
+        when(bundleContext.getAllServiceReferences(TestService.class.getName(), null))
+                .thenReturn(new ServiceReference[] {reference});
+        when(bundleContext.getService(reference)).thenReturn(service);
+
+        serviceCache.withIdleEviction(1, TimeUnit.HOURS);
+        serviceCache.openTracker(bundleContext, TestService.class);
+        verify(bundleContext, times(1)).getService(reference);
+
+        long now = System.nanoTime();
+        serviceCache.evictIdleServices(now);
+        assertThat(serviceCache.find(String.class), sameInstance(service));
+        serviceCache.evictIdleServices(now + TimeUnit.MINUTES.toNanos(30));
+        verify(bundleContext, never()).ungetService(reference);
+
+        serviceCache.evictIdleServices(now + TimeUnit.MINUTES.toNanos(90));
+        verify(bundleContext, times(1)).ungetService(reference);
+
+        assertThat(serviceCache.find(String.class), sameInstance(service));
+        verify(bundleContext, times(2)).getService(reference);
+
+        serviceCache.closeTracker();
+        verify(bundleContext, times(2)).ungetService(reference);
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        ServiceReference stringReference = serviceReference(1L, 0);
+        ServiceReference overridingStringReference = serviceReference(2L, 10);
+        serviceCache.withStats(true);
+        serviceCache.bindService(stringReference, new TestService(String.class));
+        serviceCache.bindService(overridingStringReference, new TestService(String.class));
+        serviceCache.bindService(serviceReference(3L, 0), new TestService(Integer.class));
+
+        serviceCache.find(String.class);
+        serviceCache.find(Integer.class.getName());
+        serviceCache.find(Long.class);
+        serviceCache.find(Long.class.getName());
+        when(overridingStringReference.getProperty(Constants.SERVICE_RANKING)).thenReturn(-10);
+        serviceCache.rerankService(overridingStringReference);
+
+        ServiceCacheStats stats = serviceCache.getStats();
+        assertThat(stats.getHitCount(), is(2L));
+        assertThat(stats.getMissCount(), is(2L));
+        assertThat(stats.getHitRate(), is(0.5));
+        assertThat(stats.getBindCount(), is(3L));
+        assertThat(stats.getReRankCount(), is(1L));
+        assertThat(stats.getBucketCount(), is(2));
+        assertThat(stats.getBucketSizeHistogram(), equalTo(new long[] {1, 1, 0, 0, 0, 0, 0, 0}));
+
+        serviceCache.unbindService(stringReference);
+        assertThat(stats.getUnbindCount(), is(1L));
+        assertThat(stats.getBucketSizeHistogram(), equalTo(new long[] {2, 0, 0, 0, 0, 0, 0, 0}));
+
+        BundleContext bundleContext = mock(BundleContext.class);
+        when(bundleContext.createFilter(anyString())).thenReturn(mock(Filter.class));
+        serviceCache.openTracker(bundleContext, TestService.class);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = ((ServiceCacheStatsCounter) stats).getObjectName();
+        assertThat(mBeanServer.getAttribute(objectName, "HitCount"), is(2L));
+
+        serviceCache.closeTracker();
+        assertThat(mBeanServer.isRegistered(objectName), is(false));
+    }
+
+    @Test
+    public void testEqualRankOrderedByServiceId() {
+        ServiceReference firstReference = serviceReference(5L, 0);
+        ServiceReference secondReference = serviceReference(7L, 0);
+        TestService firstService = new TestService(String.class);
+        TestService secondService = new TestService(String.class);
+        serviceCache.bindService(secondReference, secondService);
+        serviceCache.bindService(firstReference, firstService);
+
+        assertThat(serviceCache.find(String.class), sameInstance(firstService));
+
+        serviceCache.unbindService(firstReference);
+        assertThat(serviceCache.find(String.class), sameInstance(secondService));
+    }
+
+    @Test
+    public void testConcurrentBindUnbindWithEqualRank() throws Exception {
+        int threadCount = 8;
+        int servicesPerThread = 500;
+        ServiceReference keptReference = serviceReference(0L, 0);
+        TestService keptService = new TestService(String.class);
+        serviceCache.bindService(keptReference, keptService);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        AtomicLong serviceIds = new AtomicLong();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            List<ServiceReference> references = new ArrayList<>();
+            for (int i = 0; i < servicesPerThread; i++) {
+                references.add(serviceReference(serviceIds.incrementAndGet(), 0));
+            }
+            futures.add(executorService.submit(() -> {
+                for (ServiceReference reference : references) {
+                    serviceCache.bindService(reference, new TestService(String.class));
+                    assertThat(serviceCache.find(String.class), sameInstance(keptService));
+                }
+                for (ServiceReference reference : references) {
+                    serviceCache.unbindService(reference);
+                }
+            }));
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertThat(serviceCache.find(String.class), sameInstance(keptService));
+        serviceCache.unbindService(keptReference);
+        assertThat(serviceCache.find(String.class), nullValue());
+        assertThat(serviceCache.find(String.class.getName()), nullValue());
+    }
+
+    static ServiceReference serviceReference(long serviceId, int rank) {
+        ServiceReference serviceReference = mock(ServiceReference.class, withSettings().stubOnly());
+        when(serviceReference.getProperty(Constants.SERVICE_ID)).thenReturn(serviceId);
+        when(serviceReference.getProperty(Constants.SERVICE_RANKING)).thenReturn(rank);
+        return serviceReference;
+    }
+
+    static class TestService {
+        final Class entityClass;
+
+        TestService(Class entityClass) {
+            this.entityClass = entityClass;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package hu.blackbelt.osgi.utils.internal.impl;
+
+/*-
+ * #%L
+ * OSGI utils implementation
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.Bundle;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs bundle callbacks off the framework's listener thread. Callbacks of the same key and bundle form a lane
+ * and are executed one after the other in submission order, different lanes run in parallel. The number of
+ * callbacks queued or running is bounded, {@link #dispatch(Object, Bundle, Runnable)} blocks the caller when
+ * the bound is reached.
+ */
+@Slf4j
+final class BundleCallbackDispatcher {
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Map<List<Object>, CompletableFuture<Void>> lanes = new ConcurrentHashMap<>();
+
+    BundleCallbackDispatcher(int threads, int maxPending, boolean virtualThreads) {
+        this.executor = new CallbackExecutor("bundle-tracker-callback-%d", threads, virtualThreads);
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * Queues the task behind the previous task of the same key and bundle.
+     *
+     * @param key the key the callback is registered for
+     * @param bundle the bundle the callback is called with
+     * @param task the callback invocation
+     */
+    void dispatch(Object key, Bundle bundle, Runnable task) {
+        permits.acquireUninterruptibly();
+        List<Object> lane = ImmutableList.of(key, bundle);
+        CompletableFuture<Void> next = lanes.compute(lane, (l, tail) -> (tail == null ? DONE : tail)
+                .thenRunAsync(() -> run(key, bundle, task), executor));
+        next.whenComplete((v, t) -> {
+            permits.release();
+            lanes.remove(lane, next);
+        });
+    }
+
+    private static void run(Object key, Bundle bundle, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException | Error e) {
+            log.error(String.format("Error on processing bundle callback - Bundle: %s Key: %s",
+                    bundle.getSymbolicName(), key), e);
+        }
+    }
+
+    /**
+     * Waits until every callback queued for the given key has been executed.
+     *
+     * @param key the key the callbacks are registered for
+     * @param timeoutMillis maximum time to wait
+     */
+    void await(Object key, long timeoutMillis) {
+        await(lanes.entrySet().stream()
+                .filter(e -> e.getKey().get(0).equals(key))
+                .map(Map.Entry::getValue)
+                .toArray(CompletableFuture[]::new), timeoutMillis);
+    }
+
+    /**
+     * Waits until every queued callback has been executed and stops the executor. No callback may be
+     * dispatched after this call.
+     *
+     * @param timeoutMillis maximum time to wait
+     */
+    void drain(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        await(lanes.values().toArray(new CompletableFuture[0]), timeoutMillis);
+        executor.shutdown();
+        try {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            if (!executor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+                log.warn("Bundle callback executor did not terminate in {} ms", timeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CompletableFuture<?>[] futures, long timeoutMillis) {
+        try {
+            CompletableFuture.allOf(futures).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Bundle callbacks did not finish in {} ms", timeoutMillis);
+        } catch (ExecutionException e) {
+            log.error("Error on waiting for bundle callbacks", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package hu.blackbelt.osgi.utils.internal.impl;
+
+/*-
+ * #%L
+ * OSGI utils implementation
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.utils.osgi.api.BundleFilter;
+import org.osgi.framework.Bundle;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import static com.google.common.collect.Sets.newConcurrentHashSet;
+
+/**
+ * Index of the callback keys by their {@link BundleFilter}. Keys registered with a header filter are found by the
+ * headers of the bundle, keys registered with a symbolic name filter by the literal prefix of the pattern. Keys with
+ * an opaque {@link Predicate} or without filter are candidates for every bundle. The candidates still have to be
+ * tested with their filter.
+ */
+final class BundleFilterIndex {
+
+    private final Map<String, Set<Object>> byHeader = new ConcurrentHashMap<>();
+    private final Map<String, Set<Object>> bySymbolicNamePrefix = new ConcurrentHashMap<>();
+    private final Set<Object> unindexed = newConcurrentHashSet();
+    private final Map<Object, Predicate<Bundle>> filters = new ConcurrentHashMap<>();
+
+    void add(Object key, Predicate<Bundle> filter) {
+        remove(key);
+        if (filter != null) {
+            filters.put(key, filter);
+        }
+        if (filter instanceof BundleFilter) {
+            BundleFilter bundleFilter = (BundleFilter) filter;
+            if (bundleFilter.getType() == BundleFilter.Type.SYMBOLIC_NAME) {
+                add(bySymbolicNamePrefix, bundleFilter.getSymbolicNamePrefix(), key);
+            } else {
+                add(byHeader, bundleFilter.getName().toLowerCase(Locale.ROOT), key);
+            }
+        } else {
+            unindexed.add(key);
+        }
+    }
+
+    void remove(Object key) {
+        Predicate<Bundle> filter = filters.remove(key);
+        if (filter instanceof BundleFilter) {
+            BundleFilter bundleFilter = (BundleFilter) filter;
+            if (bundleFilter.getType() == BundleFilter.Type.SYMBOLIC_NAME) {
+                remove(bySymbolicNamePrefix, bundleFilter.getSymbolicNamePrefix(), key);
+            } else {
+                remove(byHeader, bundleFilter.getName().toLowerCase(Locale.ROOT), key);
+            }
+        } else {
+            unindexed.remove(key);
+        }
+    }
+
+    private static void add(Map<String, Set<Object>> index, String indexKey, Object key) {
+        index.compute(indexKey, (k, keys) -> {
+            Set<Object> bucket = keys == null ? newConcurrentHashSet() : keys;
+            bucket.add(key);
+            return bucket;
+        });
+    }
+
+    private static void remove(Map<String, Set<Object>> index, String indexKey, Object key) {
+        index.computeIfPresent(indexKey, (k, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Returns the keys whose filter can match the bundle.
+     */
+    Set<Object> candidates(Bundle bundle) {
+        Set<Object> candidates = new LinkedHashSet<>(unindexed);
+        if (!byHeader.isEmpty()) {
+            Dictionary<String, String> headers = bundle.getHeaders();
+            if (headers != null) {
+                for (Enumeration<String> names = headers.keys(); names.hasMoreElements();) {
+                    Set<Object> keys = byHeader.get(names.nextElement().toLowerCase(Locale.ROOT));
+                    if (keys != null) {
+                        candidates.addAll(keys);
+                    }
+                }
+            }
+        }
+        String symbolicName = bundle.getSymbolicName();
+        if (!bySymbolicNamePrefix.isEmpty() && symbolicName != null) {
+            for (int i = 0; i <= symbolicName.length(); i++) {
+                Set<Object> keys = bySymbolicNamePrefix.get(symbolicName.substring(0, i));
+                if (keys != null) {
+                    candidates.addAll(keys);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    Predicate<Bundle> filterOf(Object key) {
+        return filters.get(key);
+    }
+}
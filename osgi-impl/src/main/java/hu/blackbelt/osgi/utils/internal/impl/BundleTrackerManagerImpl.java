@@ -20,12 +20,14 @@ package hu.blackbelt.osgi.utils.internal.impl;
  * #L%
  */
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
 import hu.blackbelt.osgi.utils.osgi.api.BundleCallback;
 import hu.blackbelt.osgi.utils.osgi.api.BundleTrackerManager;
-import lombok.Synchronized;
+import hu.blackbelt.osgi.utils.osgi.api.PropertiesUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
@@ -35,16 +37,22 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 
 import javax.annotation.Nullable;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
-import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Maps.newConcurrentMap;
 import static com.google.common.collect.Sets.newConcurrentHashSet;
 import static java.util.Optional.ofNullable;
@@ -58,11 +66,59 @@ import static org.osgi.framework.BundleEvent.STOPPING;
  * handles the existing bundles too. So when a new bundle tracker is arriving it will call the register
  * callback for all bundles. It is uses synchron call, so it is important that do not block the
  * execution of a callback.
+ * <p>
+ * Setting the {@value #ASYNC_PROPERTY} framework property to <code>true</code> moves the callbacks of bundle events
+ * to a bounded executor (virtual threads on Java 21+). Callbacks of the same key and bundle keep their order, callbacks
+ * of different bundles or keys run in parallel. When more than {@value #ASYNC_MAX_PENDING_PROPERTY} callbacks are
+ * waiting the listener thread is blocked until some of them complete. Deactivation waits for the queued callbacks
+ * before the unregister callbacks are called.
+ * <p>
+ * Setting the {@value #PARALLEL_SCAN_PROPERTY} framework property to <code>true</code> runs the register callbacks
+ * of the already started bundles on a {@link ForkJoinPool} when a callback is registered. A failing bundle does not
+ * stop the scan of the others, and events of a bundle wait until its initial register callback has finished.
+ * <p>
+ * The background processing of the callbacks ({@link BundleCallback#process(Bundle, java.util.concurrent.ExecutorService)})
+ * runs on a bounded pool of {@value #PROCESS_THREADS_PROPERTY} threads, published as an MXBean. The processing of a
+ * bundle is cancelled when the opposite callback of the bundle is called.
+ * <p>
+ * There is no global lock. Registration and unregistration of a key are serialized by a lock per key, and the
+ * synchronous callbacks of a bundle by a lock per bundle, so each key and bundle pair sees its register and unregister
+ * callbacks in order while independent keys and bundles make progress concurrently. The locks are always taken in key,
+ * bundle order. A callback is called holding the lock of its bundle (or awaited by a registration holding the lock of
+ * its key), so the callbacks registered or unregistered from a callback are queued and executed after the callback,
+ * once the locks are released: on the same thread for synchronous callbacks, on the process executor for the
+ * asynchronous and parallel ones.
  */
+@Slf4j
 @Component(immediate = true)
 public class BundleTrackerManagerImpl implements BundleTrackerManager {
 
-    private final Object lock = new Object();
+    public static final String ASYNC_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.async";
+    public static final String ASYNC_THREADS_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.async.threads";
+    public static final String ASYNC_MAX_PENDING_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.async.maxPending";
+    public static final String ASYNC_VIRTUAL_THREADS_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.async.virtualThreads";
+    public static final String ASYNC_DRAIN_TIMEOUT_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.async.drainTimeout";
+    public static final String PARALLEL_SCAN_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.parallelScan";
+    public static final String PARALLEL_SCAN_PARALLELISM_PROPERTY =
+            "hu.blackbelt.osgi.utils.bundletracker.parallelScan.parallelism";
+    public static final String PROCESS_THREADS_PROPERTY = "hu.blackbelt.osgi.utils.bundletracker.process.threads";
+    public static final String PROCESS_VIRTUAL_THREADS_PROPERTY =
+            "hu.blackbelt.osgi.utils.bundletracker.process.virtualThreads";
+
+    private static final int DEFAULT_MAX_PENDING = 1024;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 30000;
+
+    /**
+     * Locks by key and by bundle. The values are weak, a lock is kept only while it is used.
+     */
+    private final LoadingCache<Object, Lock> keyLocks = newLocks();
+    private final LoadingCache<Bundle, Lock> bundleLocks = newLocks();
+
+    /**
+     * The registrations and unregistrations queued by the thread while it is holding a lock or calling a callback of
+     * this manager.
+     */
+    private final ThreadLocal<Deque<Runnable>> deferredRegistrations = new ThreadLocal<>();
 
     /**
      * This returns true if bundle is started.
@@ -80,21 +136,50 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
 
     private final Map<Object, Consumer<Bundle>> registerCallbacks = newConcurrentMap();
     private final Map<Object, Consumer<Bundle>> unregisterCallbacks = newConcurrentMap();
-    private final Map<Object, Map<Bundle, Thread>> registerThreads = newConcurrentMap();
-    private final Map<Object, Map<Bundle, Thread>> unregisterThreads = newConcurrentMap();
+    private final Map<Object, Map<Bundle, Future<?>>> registerTasks = newConcurrentMap();
+    private final Map<Object, Map<Bundle, Future<?>>> unregisterTasks = newConcurrentMap();
     private final Set<Bundle> processedStartedBundles = newConcurrentHashSet();
 
-    private final Map<Object, Predicate<Bundle>> filters = new ConcurrentHashMap<>();
-    private final Map<Object, Set<Bundle>> bundles = new ConcurrentHashMap<>();
+    private final BundleFilterIndex filterIndex = new BundleFilterIndex();
+    private final Map<Object, RegisteredBundles> bundles = new ConcurrentHashMap<>();
+    private final Map<Object, Map<Bundle, CompletableFuture<Void>>> initialScans = new ConcurrentHashMap<>();
 
     private SynchronousBundleListener synchronousBundleListener;
 
+    private BundleCallbackDispatcher dispatcher;
+    private long drainTimeout;
+    private ForkJoinPool scanPool;
+    private CallbackExecutor processExecutor;
+
     public BundleTrackerManagerImpl() {
     }
 
+    private static <K> LoadingCache<K, Lock> newLocks() {
+        return CacheBuilder.newBuilder().weakValues().build(CacheLoader.from(k -> new ReentrantLock()));
+    }
+
     @Activate
     public final void activate(BundleContext bundleContextPar) {
         this.bundleContext = bundleContextPar;
+        this.processExecutor = new CallbackExecutor("bundle-tracker-process-%d",
+                PropertiesUtil.toInteger(bundleContext.getProperty(PROCESS_THREADS_PROPERTY),
+                        Runtime.getRuntime().availableProcessors()),
+                PropertiesUtil.toBoolean(bundleContext.getProperty(PROCESS_VIRTUAL_THREADS_PROPERTY), false));
+        this.processExecutor.register(BundleTrackerManager.class.getSimpleName());
+        if (PropertiesUtil.toBoolean(bundleContext.getProperty(ASYNC_PROPERTY), false)) {
+            this.dispatcher = new BundleCallbackDispatcher(
+                    PropertiesUtil.toInteger(bundleContext.getProperty(ASYNC_THREADS_PROPERTY),
+                            Runtime.getRuntime().availableProcessors()),
+                    PropertiesUtil.toInteger(bundleContext.getProperty(ASYNC_MAX_PENDING_PROPERTY), DEFAULT_MAX_PENDING),
+                    PropertiesUtil.toBoolean(bundleContext.getProperty(ASYNC_VIRTUAL_THREADS_PROPERTY), true));
+            this.drainTimeout = PropertiesUtil.toLong(bundleContext.getProperty(ASYNC_DRAIN_TIMEOUT_PROPERTY),
+                    DEFAULT_DRAIN_TIMEOUT);
+        }
+        if (PropertiesUtil.toBoolean(bundleContext.getProperty(PARALLEL_SCAN_PROPERTY), false)) {
+            this.scanPool = new ForkJoinPool(PropertiesUtil.toInteger(
+                    bundleContext.getProperty(PARALLEL_SCAN_PARALLELISM_PROPERTY),
+                    Runtime.getRuntime().availableProcessors()));
+        }
         this.synchronousBundleListener = new SynchronousBundleListener() {
             @Override
             public void bundleChanged(BundleEvent event) {
@@ -107,46 +192,123 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
     @Deactivate
     public final void deactivate(BundleContext bundleContextPar) {
         this.bundleContext.removeBundleListener(synchronousBundleListener);
+        if (dispatcher != null) {
+            dispatcher.drain(drainTimeout);
+            dispatcher = null;
+        }
         for (Object key : unregisterCallbacks.keySet()) {
-            appyForExistingBundles(ofNullable(unregisterCallbacks.get(key)).get(), key);
+            withDeferredRegistrations(() -> withKeyLock(key, () -> {
+                if (unregisterCallbacks.containsKey(key)) {
+                    unregister(key);
+                }
+            }), Runnable::run);
+        }
+        if (scanPool != null) {
+            scanPool.shutdown();
+            scanPool = null;
         }
+        processExecutor.unregister();
+        processExecutor.shutdown();
     }
 
-    @Synchronized("lock")
     public void bundleChangedInternal(BundleEvent event) {
-        final Map<Object, Consumer<Bundle>> callbacks;
+        final Bundle bundle = event.getBundle();
+        withDeferredRegistrations(() -> withBundleLock(bundle, () -> dispatchEvent(event, bundle)), Runnable::run);
+    }
 
-        if (event.getType() == STARTED && !processedStartedBundles.contains(event.getBundle())) {
-            processedStartedBundles.add(event.getBundle());
+    private void dispatchEvent(BundleEvent event, Bundle bundle) {
+        final Map<Object, Consumer<Bundle>> callbacks;
+        if (event.getType() == STARTED && !processedStartedBundles.contains(bundle)) {
+            processedStartedBundles.add(bundle);
             callbacks = registerCallbacks;
-        } else if ((event.getType() == STOPPING || event.getType() == STOPPED) && processedStartedBundles.contains(event.getBundle())) {
-            processedStartedBundles.remove(event.getBundle());
+        } else if ((event.getType() == STOPPING || event.getType() == STOPPED) && processedStartedBundles.contains(bundle)) {
+            processedStartedBundles.remove(bundle);
             callbacks = unregisterCallbacks;
         } else {
-            callbacks = ImmutableMap.of();
+            return;
+        }
+
+        // Only the keys whose filter can match the bundle are evaluated
+        for (Object key : filterIndex.candidates(bundle)) {
+            final Consumer<Bundle> callback = callbacks.get(key);
+            final Predicate<Bundle> filterForRegistrator = filterIndex.filterOf(key);
+            if (callback != null && (filterForRegistrator == null || filterForRegistrator.test(bundle))) {
+                dispatch(key, bundle, callback);
+            }
+        }
+    }
+
+    /**
+     * Runs the locked section or the callback queueing the registrations and unregistrations started by it. The
+     * outermost call hands the queued ones over to the given executor in order, after the runnable has returned.
+     */
+    private void withDeferredRegistrations(Runnable runnable, Executor executor) {
+        if (deferredRegistrations.get() != null) {
+            runnable.run();
+            return;
+        }
+        Deque<Runnable> queue = new ArrayDeque<>();
+        deferredRegistrations.set(queue);
+        try {
+            runnable.run();
+        } finally {
+            deferredRegistrations.remove();
+            if (!queue.isEmpty()) {
+                executor.execute(() -> queue.forEach(Runnable::run));
+            }
         }
+    }
+
+    /**
+     * Queues the registration when the thread is holding a lock or calling a callback of this manager.
+     *
+     * @return true if the registration is queued
+     */
+    private boolean defer(Runnable registration) {
+        return ofNullable(deferredRegistrations.get()).map(queue -> queue.add(registration)).orElse(false);
+    }
 
-        for (Map.Entry<Object, Consumer<Bundle>> entry : callbacks.entrySet()) {
-            final Predicate<Bundle> filterForRegistrator =
-                    ofNullable(filters.get(entry.getKey())).orElse(x -> true);
-            ImmutableList.of(event.getBundle()).stream()
-                    .filter(Objects::nonNull)
-                    .filter(filterForRegistrator)
-                    .forEach(entry.getValue());
+    private void dispatch(Object key, Bundle bundle, Consumer<Bundle> callback) {
+        if (dispatcher == null) {
+            awaitInitialScan(key, bundle);
+            callback.accept(bundle);
+        } else {
+            dispatcher.dispatch(key, bundle, () -> {
+                awaitInitialScan(key, bundle);
+                callback.accept(bundle);
+            });
         }
     }
 
     @Override
-    @Synchronized("lock")
     public void registerBundleCallback(Object key, BundleCallback registerCallback, BundleCallback unregisterCallback,
                                        Predicate<Bundle> filter) {
-        bundles.put(key, Collections.synchronizedSet(new HashSet<Bundle>()));
-        registerCallbacks.put(key, toRegister(registerCallback, key, this.bundleContext));
-        unregisterCallbacks.put(key, toUnregister(unregisterCallback, key, this.bundleContext));
-        if (ofNullable(filter).isPresent()) {
-            filters.put(key, filter);
+        if (defer(() -> registerBundleCallback(key, registerCallback, unregisterCallback, filter))) {
+            return;
         }
-        appyForExistingBundles(registerCallbacks.get(key), key);
+        withDeferredRegistrations(() -> withKeyLock(key, () -> {
+            RegisteredBundles registered = new RegisteredBundles();
+            ofNullable(bundles.put(key, registered)).ifPresent(RegisteredBundles::close);
+            filterIndex.add(key, ofNullable(filter).orElse(filterIndex.filterOf(key)));
+            Consumer<Bundle> register = toRegister(registerCallback, key, registered, this.bundleContext);
+            Consumer<Bundle> unregister = toUnregister(unregisterCallback, key, registered, this.bundleContext);
+            if (scanPool == null) {
+                publish(key, register, unregister);
+                applyForExistingBundles(register, key);
+            } else {
+                // The barriers have to exist before the events of the bundles can reach the key
+                Map<Bundle, CompletableFuture<Void>> scan = initialScanBarriers(key);
+                publish(key, register, unregister);
+                startInitialScan(register, key, scan);
+                CompletableFuture.allOf(scan.values().toArray(new CompletableFuture[0])).join();
+                initialScans.remove(key, scan);
+            }
+        }), Runnable::run);
+    }
+
+    private void publish(Object key, Consumer<Bundle> register, Consumer<Bundle> unregister) {
+        registerCallbacks.put(key, register);
+        unregisterCallbacks.put(key, unregister);
     }
 
 
@@ -156,17 +318,56 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
     }
 
     @Override
-    @Synchronized("lock")
     public void unregisterBundleCallback(Object key) {
-        Consumer<Bundle> registerCallback = ofNullable(registerCallbacks.get(key)).get();
-        Consumer<Bundle> unregisterCallback = ofNullable(unregisterCallbacks.get(key)).get();
+        if (defer(() -> unregisterBundleCallback(key))) {
+            return;
+        }
+        withDeferredRegistrations(() -> withKeyLock(key, () -> unregister(key)), Runnable::run);
+    }
 
-        appyForExistingBundles(unregisterCallback, key);
+    /**
+     * Stops the event dispatching to the key, waits for its pending callbacks and calls the unregister callback for
+     * every bundle registered for the key. The registered bundles are closed first, so a register callback which is
+     * already picked up by an event cannot register its bundle anymore. The register callbacks which registered their
+     * bundle before are finished before the unregister callback of the bundle: the synchronous ones hold the lock of
+     * the bundle, the asynchronous ones are awaited. The caller has to hold the lock of the key.
+     */
+    private void unregister(Object key) {
+        Consumer<Bundle> unregisterCallback = ofNullable(unregisterCallbacks.remove(key)).get();
         registerCallbacks.remove(key);
-        unregisterCallbacks.remove(key);
+        RegisteredBundles registered = bundles.get(key);
+        registered.close();
 
-        bundles.remove(key);
-        filters.remove(key);
+        awaitInitialScan(key);
+        if (dispatcher != null) {
+            dispatcher.await(key, drainTimeout);
+        }
+        for (Bundle bundle : registered.snapshot()) {
+            withBundleLock(bundle, () -> unregisterCallback.accept(bundle));
+        }
+
+        bundles.remove(key, registered);
+        filterIndex.remove(key);
+    }
+
+    private void withKeyLock(Object key, Runnable runnable) {
+        final Lock keyLock = keyLocks.getUnchecked(key);
+        keyLock.lock();
+        try {
+            runnable.run();
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private void withBundleLock(Bundle bundle, Runnable runnable) {
+        final Lock bundleLock = bundleLocks.getUnchecked(bundle);
+        bundleLock.lock();
+        try {
+            runnable.run();
+        } finally {
+            bundleLock.unlock();
+        }
     }
 
     /**
@@ -174,11 +375,13 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
      *
      * @param callback Bundle callback for registration
      * @param key Register for key
+     * @param registered The bundles registered for the key
      * @param thisBundleContext Which gets service instance
      * @return {@link Consumer} for register
      */
 
-    private Consumer<Bundle> toRegister(final BundleCallback callback, final Object key, final BundleContext thisBundleContext) {
+    private Consumer<Bundle> toRegister(final BundleCallback callback, final Object key,
+                                        final RegisteredBundles registered, final BundleContext thisBundleContext) {
         return new Consumer<Bundle>() {
             @Nullable
             @Override
@@ -186,11 +389,15 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
                 if (thisBundleContext.getBundle(0).getState() == Bundle.STOPPING) {
                     return;
                 }
-                checkState(!bundles.get(key).contains(input),
-                        String.format("Bundle is already registered - Bundle: %s Key: %s!", input.getSymbolicName(), key));
-                bundles.get(key).add(input);
-                callback.accept(input);
-                handleThreadStates(key, input, callback, registerThreads, unregisterThreads);
+                // The event and the initial scan can both reach a starting bundle, only the first one registers it.
+                // Nothing is registered after the key is unregistered.
+                if (!registered.add(input)) {
+                    return;
+                }
+                withDeferredRegistrations(() -> {
+                    callback.accept(input);
+                    handleTaskStates(key, input, callback, registerTasks, unregisterTasks);
+                }, processExecutor);
             }
         };
     }
@@ -200,10 +407,12 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
      *
      * @param callback Bundle callback for unregistration
      * @param key Register for key
+     * @param registered The bundles registered for the key
      * @param thisBundleContext Which gets bundle instance
      * @return {@link Consumer} for unregister
      */
-    private Consumer<Bundle> toUnregister(final BundleCallback callback, final Object key, final BundleContext thisBundleContext) {
+    private Consumer<Bundle> toUnregister(final BundleCallback callback, final Object key,
+                                          final RegisteredBundles registered, final BundleContext thisBundleContext) {
         return new Consumer<Bundle>() {
             @Nullable
             @Override
@@ -212,10 +421,11 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
                     return;
                 }
                 processedStartedBundles.remove(bundleContext.getBundle());
-                if (bundles.get(key).contains(input)) {
-                    bundles.get(key).remove(input);
-                    callback.accept(input);
-                    handleThreadStates(key, input, callback, unregisterThreads, registerThreads);
+                if (registered.remove(input)) {
+                    withDeferredRegistrations(() -> {
+                        callback.accept(input);
+                        handleTaskStates(key, input, callback, unregisterTasks, registerTasks);
+                    }, processExecutor);
                 }
             }
         };
@@ -223,42 +433,123 @@ public class BundleTrackerManagerImpl implements BundleTrackerManager {
 
     /**
      * It iterates all existing STARTED bundles. It filters the bundles with the registered Predicate for the key and
-     *  bundles which does not contain the Judo-Platform on MANIFEST.MF.
+     *  bundles which does not contain the Judo-Platform on MANIFEST.MF. The callback is called holding the lock of the
+     *  bundle, a bundle stopped meanwhile is skipped.
      *
-     * @param callback - The callback (registration/unregistration) which have to be made the filtered service bundles
+     * @param callback - The registration callback which have to be made the filtered service bundles
      * @param key - The key which registers the listener
      */
-    private void appyForExistingBundles(Consumer<Bundle> callback, Object key) {
-        Predicate<Bundle> filterForRegistratorClass = ofNullable(filters.get(key)).orElse(x -> true);
+    private void applyForExistingBundles(Consumer<Bundle> callback, Object key) {
+        for (Bundle bundle : existingBundles(key)) {
+            withBundleLock(bundle, () -> {
+                if (IS_BUNDLE_ACTIVE.test(bundle)) {
+                    callback.accept(bundle);
+                    processedStartedBundles.add(bundle);
+                }
+            });
+        }
+    }
+
+    private List<Bundle> existingBundles(Object key) {
+        Predicate<Bundle> filterForRegistratorClass = ofNullable(filterIndex.filterOf(key)).orElse(x -> true);
 
-        ImmutableList.copyOf(this.bundleContext.getBundles()).stream()
+        return ImmutableList.copyOf(this.bundleContext.getBundles()).stream()
                 .filter(IS_BUNDLE_ACTIVE)
                 .filter(filterForRegistratorClass)
-                .forEach(callback.andThen(b -> processedStartedBundles.add(b)));
+                .collect(ImmutableList.toImmutableList());
     }
 
-    private void handleThreadStates(Object key, final Bundle bundle, final BundleCallback callback,
-                                    Map<Object, Map<Bundle, Thread>> startableThreads, Map<Object, Map<Bundle, Thread>> stopableThreads) {
-        if (stopableThreads.containsKey(key)) {
-            Thread stop = stopableThreads.get(key).get(bundle);
-            if (ofNullable(stop).isPresent()) {
-                if (stop.isAlive()) {
-                    stop.interrupt();
+    /**
+     * Creates the barriers of the initial scan for every existing STARTED bundle. The bundles are marked as
+     * processed, so their STOPPING events are routed to the unregister callback which waits for the initial one.
+     *
+     * @param key - The key which registers the listener
+     * @return the barriers by bundle
+     */
+    private Map<Bundle, CompletableFuture<Void>> initialScanBarriers(Object key) {
+        Map<Bundle, CompletableFuture<Void>> scan = new ConcurrentHashMap<>();
+        for (Bundle bundle : existingBundles(key)) {
+            processedStartedBundles.add(bundle);
+            scan.put(bundle, new CompletableFuture<>());
+        }
+        initialScans.put(key, scan);
+        return scan;
+    }
+
+    /**
+     * Submits the register callback of every bundle of the scan to the scan pool. Exceptions are logged per bundle.
+     * The tasks do not take the lock of the bundle, the events of the bundle wait for the barrier instead.
+     *
+     * @param callback - The registration callback
+     * @param key - The key which registers the listener
+     * @param scan - The barriers by bundle
+     */
+    private void startInitialScan(Consumer<Bundle> callback, Object key, Map<Bundle, CompletableFuture<Void>> scan) {
+        scan.forEach((bundle, barrier) -> scanPool.execute(() -> {
+            try {
+                if (IS_BUNDLE_ACTIVE.test(bundle)) {
+                    callback.accept(bundle);
                 }
-                stopableThreads.get(key).remove(bundle);
+            } catch (RuntimeException e) {
+                log.error(String.format("Error on processing existing bundle - Bundle: %s Key: %s",
+                        bundle.getSymbolicName(), key), e);
+            } finally {
+                barrier.complete(null);
             }
-            if (stopableThreads.get(key).size() == 0) {
-                stopableThreads.remove(key);
-            }
-        }
+        }));
+    }
 
-        Thread start = callback.process(bundle);
+    private void awaitInitialScan(Object key, Bundle bundle) {
+        ofNullable(initialScans.get(key)).map(scan -> scan.get(bundle)).ifPresent(CompletableFuture::join);
+    }
+
+    private void awaitInitialScan(Object key) {
+        ofNullable(initialScans.get(key)).ifPresent(scan -> scan.values().forEach(CompletableFuture::join));
+    }
+
+    /**
+     * Cancels the processing started by the opposite callback for the bundle and starts the processing of the
+     * current one on the process executor.
+     */
+    private void handleTaskStates(Object key, final Bundle bundle, final BundleCallback callback,
+                                  Map<Object, Map<Bundle, Future<?>>> startableTasks,
+                                  Map<Object, Map<Bundle, Future<?>>> stopableTasks) {
+        stopableTasks.computeIfPresent(key, (k, tasks) -> {
+            ofNullable(tasks.remove(bundle)).ifPresent(stop -> stop.cancel(true));
+            return tasks.isEmpty() ? null : tasks;
+        });
+
+        Future<?> start = callback.process(bundle, processExecutor.view());
         if (ofNullable(start).isPresent()) {
-            if (!startableThreads.containsKey(key)) {
-                startableThreads.put(key, Maps.<Bundle, Thread>newConcurrentMap());
-            }
-            startableThreads.get(key).put(bundle, start);
-            start.start();
+            startableTasks.compute(key, (k, tasks) -> {
+                Map<Bundle, Future<?>> startable = ofNullable(tasks).orElseGet(() -> newConcurrentMap());
+                startable.put(bundle, start);
+                return startable;
+            });
+        }
+    }
+
+    /**
+     * Bundles registered for a key. It is closed when the key is unregistered, after that no bundle can be added.
+     */
+    private static final class RegisteredBundles {
+        private final Set<Bundle> bundles = new HashSet<>();
+        private boolean closed;
+
+        synchronized boolean add(Bundle bundle) {
+            return !closed && bundles.add(bundle);
+        }
+
+        synchronized boolean remove(Bundle bundle) {
+            return bundles.remove(bundle);
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized List<Bundle> snapshot() {
+            return ImmutableList.copyOf(bundles);
         }
     }
 
@@ -0,0 +1,206 @@
+package hu.blackbelt.osgi.utils.internal.impl;
+
+/*-
+ * #%L
+ * OSGI utils implementation
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded thread pool for the tracker callbacks. The threads are created on demand up to the given size and are
+ * released when idle. On Java 21+ the threads can be virtual ones, the pool size still limits the concurrency.
+ * The pool counts the failed and cancelled tasks and the processing time, and can be published as an MXBean.
+ */
+@Slf4j
+final class CallbackExecutor extends ThreadPoolExecutor implements CallbackExecutorMXBean {
+
+    private static final String JMX_DOMAIN = "hu.blackbelt.osgi.utils";
+
+    private final LongAdder failedTaskCount = new LongAdder();
+    private final LongAdder cancelledTaskCount = new LongAdder();
+    private final LongAdder totalProcessingTime = new LongAdder();
+    private final ThreadLocal<Long> startTime = new ThreadLocal<>();
+    private final ExecutorService view = new View();
+    private ObjectName objectName;
+
+    CallbackExecutor(String nameFormat, int threads, boolean virtualThreads) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                threadFactory(nameFormat, virtualThreads));
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates a virtual thread factory when the runtime supports it (Java 21+), otherwise a daemon platform
+     * thread factory.
+     */
+    static ThreadFactory threadFactory(String nameFormat, boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                builder = builderType.getMethod("name", String.class, long.class)
+                        .invoke(builder, nameFormat.replace("%d", ""), 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                log.debug("Virtual threads are not available, falling back to platform threads");
+            }
+        }
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    /**
+     * Returns the executor which is passed to the callbacks. It submits to this pool but cannot shut it down.
+     */
+    ExecutorService view() {
+        return view;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        startTime.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        totalProcessingTime.add(System.nanoTime() - startTime.get());
+        startTime.remove();
+        Throwable failure = t;
+        if (failure == null && r instanceof Future<?> && ((Future<?>) r).isDone()) {
+            try {
+                ((Future<?>) r).get();
+            } catch (CancellationException e) {
+                cancelledTaskCount.increment();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            failedTaskCount.increment();
+            log.error("Error on processing callback task", failure);
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    @Override
+    public long getFailedTaskCount() {
+        return failedTaskCount.sum();
+    }
+
+    @Override
+    public long getCancelledTaskCount() {
+        return cancelledTaskCount.sum();
+    }
+
+    @Override
+    public long getTotalProcessingTime() {
+        return totalProcessingTime.sum();
+    }
+
+    /**
+     * Publishes the pool on the platform MBean server.
+     *
+     * @param type Type of the owner component
+     */
+    @SneakyThrows
+    synchronized void register(String type) {
+        if (objectName != null) {
+            return;
+        }
+        ObjectName candidate = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=callbackExecutor"
+                + ",id=" + Integer.toHexString(System.identityHashCode(this)));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(this, CallbackExecutorMXBean.class, true), candidate);
+        objectName = candidate;
+    }
+
+    @SneakyThrows
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+        objectName = null;
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    private final class View extends AbstractExecutorService {
+
+        @Override
+        public void execute(Runnable command) {
+            CallbackExecutor.this.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            throw new UnsupportedOperationException("The callback executor is managed by the tracker manager");
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            throw new UnsupportedOperationException("The callback executor is managed by the tracker manager");
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return CallbackExecutor.this.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return CallbackExecutor.this.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return CallbackExecutor.this.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package hu.blackbelt.osgi.utils.internal.impl;
+
+/*-
+ * #%L
+ * OSGI utils implementation
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Management view of the executor which runs the background processing of the tracker callbacks.
+ */
+public interface CallbackExecutorMXBean {
+
+    int getMaximumPoolSize();
+
+    int getPoolSize();
+
+    int getActiveCount();
+
+    int getQueueSize();
+
+    long getCompletedTaskCount();
+
+    long getFailedTaskCount();
+
+    long getCancelledTaskCount();
+
+    /**
+     * Returns the total time spent in callback tasks, in nanoseconds.
+     */
+    long getTotalProcessingTime();
+}
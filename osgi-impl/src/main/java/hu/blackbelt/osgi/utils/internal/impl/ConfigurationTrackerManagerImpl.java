@@ -25,6 +25,7 @@ import hu.blackbelt.osgi.utils.osgi.api.ConfigurationCallback;
 import hu.blackbelt.osgi.utils.osgi.api.ConfigurationInfo;
 import hu.blackbelt.osgi.utils.osgi.api.ConfigurationInfo.ConfigEventType;
 import hu.blackbelt.osgi.utils.osgi.api.ConfigurationTrackerManager;
+import hu.blackbelt.osgi.utils.osgi.api.PropertiesUtil;
 import lombok.Synchronized;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.BundleContext;
@@ -44,6 +45,7 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.function.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -64,11 +66,20 @@ import static org.osgi.service.cm.ConfigurationEvent.CM_UPDATED;
  * handles the existing configurations too. So when a new bundle tracker is arriving it will call the create and update
  * callback for all configurations. It is uses synchronous call, so it is important that do not block the
  * execution of a callback.
+ * <p>
+ * The background processing of the callbacks
+ * ({@link ConfigurationCallback#process(ConfigurationInfo, java.util.concurrent.ExecutorService)}) runs on a bounded
+ * pool of {@value #PROCESS_THREADS_PROPERTY} threads, published as an MXBean. The processing of a configuration is
+ * cancelled when the next event of the same configuration is processed for the key.
  */
 @Slf4j
 @Component(configurationPolicy = ConfigurationPolicy.IGNORE, immediate = true)
 public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerManager {
 
+    public static final String PROCESS_THREADS_PROPERTY = "hu.blackbelt.osgi.utils.configurationtracker.process.threads";
+    public static final String PROCESS_VIRTUAL_THREADS_PROPERTY =
+            "hu.blackbelt.osgi.utils.configurationtracker.process.virtualThreads";
+
     @Reference
     ConfigurationAdmin configurationAdmin;
 
@@ -79,6 +90,9 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
     final Map<Object, Consumer<ConfigurationInfo>> updateCallbacks = newConcurrentMap();
     final Map<Object, Consumer<ConfigurationInfo>> deleteCallbacks = newConcurrentMap();
     final Map<Object, Predicate<ConfigurationInfo>> filters = new ConcurrentHashMap<>();
+    final Map<Object, Map<String, Future<?>>> processTasks = newConcurrentMap();
+
+    CallbackExecutor processExecutor;
 
     final Map<String, Dictionary<String, Object>> configurationPropertiesByPid = new ConcurrentHashMap<>();
     final Map<String, String> configurationFactoryPidByPid = new ConcurrentHashMap<>();
@@ -92,6 +106,11 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
 
     @Activate
     public final void activate(BundleContext bundleContext) {
+        this.processExecutor = new CallbackExecutor("configuration-tracker-process-%d",
+                PropertiesUtil.toInteger(bundleContext.getProperty(PROCESS_THREADS_PROPERTY),
+                        Runtime.getRuntime().availableProcessors()),
+                PropertiesUtil.toBoolean(bundleContext.getProperty(PROCESS_VIRTUAL_THREADS_PROPERTY), false));
+        this.processExecutor.register(ConfigurationTrackerManager.class.getSimpleName());
         this.synchronousConfigurationListener = new SynchronousConfigurationListener() {
             @Override
             public void configurationEvent(ConfigurationEvent event) {
@@ -115,6 +134,10 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
     @Deactivate
     public final void deactivate() {
         synchronousConfigurationListenerServiceRegistration.unregister();
+        processTasks.values().forEach(tasks -> tasks.values().forEach(task -> task.cancel(true)));
+        processTasks.clear();
+        processExecutor.unregister();
+        processExecutor.shutdown();
     }
 
     private List<Configuration> getAllConfigurations() {
@@ -135,9 +158,9 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
 
         List<Configuration> allConfigurations = getAllConfigurations();
 
-        createCallbacks.put(key, toConsumer(createCallback));
-        updateCallbacks.put(key, toConsumer(updateCallback));
-        deleteCallbacks.put(key, toConsumer(deleteCallback));
+        createCallbacks.put(key, toConsumer(key, createCallback));
+        updateCallbacks.put(key, toConsumer(key, updateCallback));
+        deleteCallbacks.put(key, toConsumer(key, deleteCallback));
         if (filter != null) {
             filters.put(key, filter);
         }
@@ -165,6 +188,7 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
         updateCallbacks.remove(key);
         deleteCallbacks.remove(key);
         filters.remove(key);
+        ofNullable(processTasks.remove(key)).ifPresent(tasks -> tasks.values().forEach(task -> task.cancel(true)));
     }
 
     private Predicate<ConfigurationInfo> configurationFilter(Object key)  {
@@ -249,17 +273,40 @@ public class ConfigurationTrackerManagerImpl implements ConfigurationTrackerMana
     /**
      * Convert {@link ConfigurationCallback} to {@link Consumer}.
      *
+     * @param key Register for key
      * @param callback {@link ConfigurationCallback} callback to create
      * @return  {@link Consumer} for create
      */
-    private Consumer<ConfigurationInfo> toConsumer(final ConfigurationCallback callback) {
+    private Consumer<ConfigurationInfo> toConsumer(final Object key, final ConfigurationCallback callback) {
         return new Consumer<ConfigurationInfo>() {
             @Nullable
             @Override
             public void accept(ConfigurationInfo input) {
                 callback.accept(input);
+                handleTaskStates(key, input, callback);
             }
         };
     }
 
+    /**
+     * Cancels the processing of the previous event of the configuration and starts the processing of the current
+     * one on the process executor.
+     */
+    private void handleTaskStates(Object key, ConfigurationInfo configurationInfo, ConfigurationCallback callback) {
+        String pid = configurationInfo.getConfigurationPid();
+        processTasks.computeIfPresent(key, (k, tasks) -> {
+            ofNullable(tasks.remove(pid)).ifPresent(previous -> previous.cancel(true));
+            return tasks.isEmpty() ? null : tasks;
+        });
+
+        Future<?> start = callback.process(configurationInfo, processExecutor.view());
+        if (start != null) {
+            processTasks.compute(key, (k, tasks) -> {
+                Map<String, Future<?>> startable = ofNullable(tasks).orElseGet(() -> newConcurrentMap());
+                startable.put(pid, start);
+                return startable;
+            });
+        }
+    }
+
 }
@@ -21,9 +21,11 @@ package hu.blackbelt.osgi.utils.internal.impl;
  */
 
 import hu.blackbelt.osgi.utils.osgi.api.BundleCallback;
+import hu.blackbelt.osgi.utils.osgi.api.BundleFilter;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.framework.Bundle;
@@ -32,10 +34,26 @@ import org.osgi.framework.BundleEvent;
 import org.osgi.framework.InvalidSyntaxException;
 
 import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 import static hu.blackbelt.osgi.utils.test.MockOsgi.activate;
 import static hu.blackbelt.osgi.utils.test.MockOsgi.deactivate;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -241,4 +259,419 @@ public class BundleTrackerManagerImplTest {
         verify(unregisterCallbackMock, times(0)).accept(bundleMock2);
     }
 
+    @Test
+    public void testAsyncDispatch() throws Exception {
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.ASYNC_PROPERTY)).thenReturn("true");
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.ASYNC_THREADS_PROPERTY)).thenReturn("2");
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[0]);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherBundleRegistered = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(registerCallbackMock).accept(bundleMock);
+        doAnswer(invocation -> {
+            otherBundleRegistered.countDown();
+            return null;
+        }).when(registerCallbackMock).accept(bundleMock2);
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback(this.getClass(), registerCallbackMock, unregisterCallbackMock);
+
+        BundleEvent startedMock2 = mock(BundleEvent.class);
+        when(startedMock2.getType()).thenReturn(BundleEvent.STARTED);
+        when(startedMock2.getBundle()).thenReturn(bundleMock2);
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock);
+        when(unregisterBundleEventMock.getBundle()).thenReturn(bundleMock);
+
+        // The listener thread is not blocked by the slow callback and other bundles are processed meanwhile
+        trackerManager.bundleChangedInternal(registerBundleEventMock);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        trackerManager.bundleChangedInternal(startedMock2);
+        assertTrue(otherBundleRegistered.await(5, TimeUnit.SECONDS));
+
+        // Unregistration of the same bundle waits for its registration
+        trackerManager.bundleChangedInternal(unregisterBundleEventMock);
+        verify(unregisterCallbackMock, never()).accept(bundleMock);
+
+        release.countDown();
+        deactivate(trackerManager, bundleContextMock);
+
+        InOrder inOrder = inOrder(registerCallbackMock, unregisterCallbackMock);
+        inOrder.verify(registerCallbackMock).accept(bundleMock);
+        inOrder.verify(unregisterCallbackMock).accept(bundleMock);
+        verify(registerCallbackMock, times(1)).accept(bundleMock2);
+    }
+
+    @Test
+    public void testParallelInitialScan() throws Exception {
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.PARALLEL_SCAN_PROPERTY)).thenReturn("true");
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.PARALLEL_SCAN_PARALLELISM_PROPERTY)).thenReturn("2");
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[]{bundleMock, bundleMock2});
+        when(bundleMock2.getState()).thenReturn(Bundle.ACTIVE);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherBundleRegistered = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(registerCallbackMock).accept(bundleMock);
+        doAnswer(invocation -> {
+            otherBundleRegistered.countDown();
+            throw new IllegalStateException("Broken bundle");
+        }).when(registerCallbackMock).accept(bundleMock2);
+
+        activate(trackerManager, bundleContextMock);
+        Thread registration = new Thread(() ->
+                trackerManager.registerBundleCallback(this.getClass(), registerCallbackMock, unregisterCallbackMock));
+        registration.start();
+
+        // A failing bundle does not stop the scan and does not wait for the slow one
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        assertTrue(otherBundleRegistered.await(5, TimeUnit.SECONDS));
+
+        // The event of the bundle under scan waits for its initial callback
+        when(unregisterBundleEventMock.getBundle()).thenReturn(bundleMock);
+        Thread event = new Thread(() -> trackerManager.bundleChangedInternal(unregisterBundleEventMock));
+        event.start();
+        event.join(200);
+        assertTrue(event.isAlive());
+        verify(unregisterCallbackMock, never()).accept(bundleMock);
+
+        release.countDown();
+        registration.join(5000);
+        event.join(5000);
+
+        InOrder inOrder = inOrder(registerCallbackMock, unregisterCallbackMock);
+        inOrder.verify(registerCallbackMock).accept(bundleMock);
+        inOrder.verify(unregisterCallbackMock).accept(bundleMock);
+
+        when(bundleMock.getState()).thenReturn(Bundle.RESOLVED);
+        deactivate(trackerManager, bundleContextMock);
+        verify(unregisterCallbackMock, times(1)).accept(bundleMock);
+    }
+
+    @Test
+    public void testProcessOnManagedExecutor() throws Exception {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[0]);
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock);
+        when(unregisterBundleEventMock.getBundle()).thenReturn(bundleMock);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final CountDownLatch legacyProcessed = new CountDownLatch(1);
+        final AtomicReference<String> processThread = new AtomicReference<>();
+        final AtomicReference<String> legacyProcessThread = new AtomicReference<>();
+
+        BundleCallback registerCallback = new BundleCallback() {
+            @Override
+            public void accept(Bundle bundle) {
+            }
+
+            @Override
+            public Future<?> process(Bundle bundle, ExecutorService executor) {
+                return executor.submit(() -> {
+                    processThread.set(Thread.currentThread().getName());
+                    started.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        cancelled.countDown();
+                    }
+                });
+            }
+        };
+        BundleCallback legacyUnregisterCallback = new BundleCallback() {
+            @Override
+            public void accept(Bundle bundle) {
+            }
+
+            @Override
+            public Thread process(Bundle bundle) {
+                return new Thread(() -> {
+                    legacyProcessThread.set(Thread.currentThread().getName());
+                    legacyProcessed.countDown();
+                }, "legacy-process");
+            }
+        };
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback(this.getClass(), registerCallback, legacyUnregisterCallback);
+
+        trackerManager.bundleChangedInternal(registerBundleEventMock);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertThat(processThread.get(), startsWith("bundle-tracker-process-"));
+
+        // The opposite event cancels the running processing, the legacy thread is started on its own
+        trackerManager.bundleChangedInternal(unregisterBundleEventMock);
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(legacyProcessed.await(5, TimeUnit.SECONDS));
+        assertThat(legacyProcessThread.get(), is("legacy-process"));
+
+        deactivate(trackerManager, bundleContextMock);
+    }
+
+    @Test(timeout = 10000)
+    public void testLegacyProcessThreadIsInterrupted() throws Exception {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[0]);
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock);
+        when(unregisterBundleEventMock.getBundle()).thenReturn(bundleMock);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final PollingThread legacyThread = new PollingThread(started);
+        BundleCallback legacyRegisterCallback = new BundleCallback() {
+            @Override
+            public void accept(Bundle bundle) {
+            }
+
+            @Override
+            public Thread process(Bundle bundle) {
+                return legacyThread;
+            }
+        };
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback(this.getClass(), legacyRegisterCallback, mock(BundleCallback.class));
+
+        trackerManager.bundleChangedInternal(registerBundleEventMock);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The thread polls its own interrupted state, so the thread itself has to be interrupted
+        trackerManager.bundleChangedInternal(unregisterBundleEventMock);
+        legacyThread.join(TimeUnit.SECONDS.toMillis(5));
+        assertThat(legacyThread.isAlive(), is(false));
+
+        deactivate(trackerManager, bundleContextMock);
+    }
+
+    /**
+     * Legacy processing thread which runs until it is interrupted.
+     */
+    private static class PollingThread extends Thread {
+        private final CountDownLatch started;
+
+        PollingThread(CountDownLatch started) {
+            this.started = started;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            while (!isInterrupted()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedFilters() {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[0]);
+        Bundle extenderBundle = bundle("hu.blackbelt.extender", "Extender", "true");
+        Bundle otherBundle = bundle("org.other", "Other", "true");
+
+        BundleCallback headerCallback = mock(BundleCallback.class);
+        BundleCallback valueCallback = mock(BundleCallback.class);
+        BundleCallback nameCallback = mock(BundleCallback.class);
+        Predicate<Bundle> opaqueFilter = spy(new Predicate<Bundle>() {
+            @Override
+            public boolean test(Bundle bundle) {
+                return true;
+            }
+        });
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback("header", headerCallback, unregisterCallbackMock,
+                BundleFilter.headerPresent("Extender"));
+        trackerManager.registerBundleCallback("value", valueCallback, unregisterCallbackMock,
+                BundleFilter.headerValue("Extender", "false"));
+        trackerManager.registerBundleCallback("name", nameCallback, unregisterCallbackMock,
+                BundleFilter.symbolicName("hu.blackbelt.*"));
+        trackerManager.registerBundleCallback("opaque", registerCallbackMock, unregisterCallbackMock, opaqueFilter);
+
+        BundleEvent extenderStarted = mock(BundleEvent.class);
+        when(extenderStarted.getType()).thenReturn(BundleEvent.STARTED);
+        when(extenderStarted.getBundle()).thenReturn(extenderBundle);
+        BundleEvent otherStarted = mock(BundleEvent.class);
+        when(otherStarted.getType()).thenReturn(BundleEvent.STARTED);
+        when(otherStarted.getBundle()).thenReturn(otherBundle);
+
+        trackerManager.bundleChangedInternal(extenderStarted);
+        trackerManager.bundleChangedInternal(otherStarted);
+
+        verify(headerCallback, times(1)).accept(extenderBundle);
+        verify(valueCallback, never()).accept(extenderBundle);
+        verify(nameCallback, times(1)).accept(extenderBundle);
+        verify(registerCallbackMock, times(1)).accept(extenderBundle);
+        verify(registerCallbackMock, times(1)).accept(otherBundle);
+
+        // Opaque filters are evaluated for every bundle
+        verify(opaqueFilter, times(1)).test(otherBundle);
+        verify(headerCallback, never()).accept(otherBundle);
+        verify(nameCallback, never()).accept(otherBundle);
+
+        trackerManager.unregisterBundleCallback("header");
+        trackerManager.unregisterBundleCallback("value");
+        trackerManager.unregisterBundleCallback("name");
+        trackerManager.unregisterBundleCallback("opaque");
+        deactivate(trackerManager, bundleContextMock);
+    }
+
+    @Test(timeout = 10000)
+    public void testIndependentKeysAndBundlesDoNotBlock() throws Exception {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[]{bundleMock});
+        when(bundleMock2.getState()).thenReturn(Bundle.STARTING);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(registerCallbackMock).accept(bundleMock2);
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback("slow", registerCallbackMock, unregisterCallbackMock);
+
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock2);
+        Thread event = new Thread(() -> trackerManager.bundleChangedInternal(registerBundleEventMock));
+        event.start();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        // While a callback of bundleMock2 is running other keys can be registered and unregistered
+        BundleCallback otherCallback = mock(BundleCallback.class);
+        trackerManager.registerBundleCallback("other", otherCallback, otherCallback);
+        verify(otherCallback, times(1)).accept(bundleMock);
+        trackerManager.unregisterBundleCallback("other");
+        verify(otherCallback, times(2)).accept(bundleMock);
+        assertTrue(event.isAlive());
+
+        release.countDown();
+        event.join(5000);
+        verify(registerCallbackMock, times(1)).accept(bundleMock2);
+
+        trackerManager.unregisterBundleCallback("slow");
+        verify(unregisterCallbackMock, times(1)).accept(bundleMock);
+        verify(unregisterCallbackMock, times(1)).accept(bundleMock2);
+        deactivate(trackerManager, bundleContextMock);
+    }
+
+    @Test(timeout = 10000)
+    public void testRegistrationFromCallback() throws Exception {
+        assertRegistrationFromCallbackCompletes();
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncRegistrationFromCallback() throws Exception {
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.ASYNC_PROPERTY)).thenReturn("true");
+        assertRegistrationFromCallbackCompletes();
+    }
+
+    /**
+     * The callback registers and unregisters an other key for the bundle it is called with, from the initial scan
+     * and from an event. The registrations are executed after the callback, in the order they were made.
+     */
+    private void assertRegistrationFromCallbackCompletes() throws Exception {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[]{bundleMock});
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock2);
+
+        BundleCallback nestingCallback = new BundleCallback() {
+            @Override
+            public void accept(Bundle bundle) {
+                trackerManager.registerBundleCallback(bundle, registerCallbackMock, unregisterCallbackMock);
+                trackerManager.unregisterBundleCallback(bundle);
+            }
+        };
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback(this.getClass(), nestingCallback, mock(BundleCallback.class));
+        trackerManager.bundleChangedInternal(registerBundleEventMock);
+
+        // Both nested keys are registered for the only started bundle
+        verify(registerCallbackMock, timeout(5000).times(2)).accept(bundleMock);
+        verify(unregisterCallbackMock, timeout(5000).times(2)).accept(bundleMock);
+        InOrder inOrder = inOrder(registerCallbackMock, unregisterCallbackMock);
+        inOrder.verify(registerCallbackMock).accept(bundleMock);
+        inOrder.verify(unregisterCallbackMock).accept(bundleMock);
+        inOrder.verify(registerCallbackMock).accept(bundleMock);
+        inOrder.verify(unregisterCallbackMock).accept(bundleMock);
+        deactivate(trackerManager, bundleContextMock);
+    }
+
+    @Test(timeout = 10000)
+    public void testUnregisterDuringEvent() throws Exception {
+        assertNoRegistrationAfterUnregister();
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncUnregisterDuringEvent() throws Exception {
+        when(bundleContextMock.getProperty(BundleTrackerManagerImpl.ASYNC_PROPERTY)).thenReturn("true");
+        assertNoRegistrationAfterUnregister();
+    }
+
+    /**
+     * The event picks up the register callback of the key, then the key is unregistered before the callback is
+     * called. The bundle must not be registered while or after the registered bundles are unregistered.
+     */
+    private void assertNoRegistrationAfterUnregister() throws Exception {
+        when(bundleContextMock.getBundles()).thenReturn(new Bundle[]{bundleMock2});
+        when(bundleMock2.getState()).thenReturn(Bundle.ACTIVE);
+        when(registerBundleEventMock.getBundle()).thenReturn(bundleMock);
+
+        final CountDownLatch filtering = new CountDownLatch(1);
+        final CountDownLatch unregistering = new CountDownLatch(1);
+        final CountDownLatch registered = new CountDownLatch(1);
+        Predicate<Bundle> filter = bundle -> {
+            if (bundle == bundleMock) {
+                filtering.countDown();
+                await(unregistering, 5);
+            }
+            return true;
+        };
+        doAnswer(invocation -> {
+            registered.countDown();
+            return null;
+        }).when(registerCallbackMock).accept(bundleMock);
+        doAnswer(invocation -> {
+            // The unregistration is in progress, the event of the other bundle goes on meanwhile
+            unregistering.countDown();
+            await(registered, 1);
+            return null;
+        }).when(unregisterCallbackMock).accept(bundleMock2);
+
+        activate(trackerManager, bundleContextMock);
+        trackerManager.registerBundleCallback(this.getClass(), registerCallbackMock, unregisterCallbackMock, filter);
+        Thread event = new Thread(() -> trackerManager.bundleChangedInternal(registerBundleEventMock));
+        event.start();
+        assertTrue(filtering.await(5, TimeUnit.SECONDS));
+
+        trackerManager.unregisterBundleCallback(this.getClass());
+        event.join(5000);
+        deactivate(trackerManager, bundleContextMock);
+
+        verify(unregisterCallbackMock, times(1)).accept(bundleMock2);
+        verify(registerCallbackMock, never()).accept(bundleMock);
+    }
+
+    private static void await(CountDownLatch latch, int seconds) {
+        try {
+            latch.await(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Bundle bundle(String symbolicName, String header, String value) {
+        Dictionary<String, String> headers = new Hashtable<>();
+        headers.put(header, value);
+        Bundle bundle = mock(Bundle.class);
+        when(bundle.getSymbolicName()).thenReturn(symbolicName);
+        when(bundle.getHeaders()).thenReturn(headers);
+        return bundle;
+    }
+
 }